@@ -0,0 +1,249 @@
+package com.charteto;
+
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.core.instrument.util.NamedThreadFactory;
+import io.micrometer.core.instrument.util.TimeUtils;
+import io.micrometer.core.ipc.http.HttpSender;
+import io.micrometer.core.ipc.http.HttpUrlConnectionSender;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Host-local aggregator for registries using {@link ChartetoTransport#AGENT}. Listens on
+ * {@link ChartetoConfig#agentAddress()} for the deltas registries send, merges them (cumulative
+ * series are summed across processes, gauges keep the latest value) and forwards the result once a
+ * step to every one of {@link ChartetoConfig#uris()}, batched and compressed as configured.
+ * <p>
+ * Run it with {@code java -cp ... com.charteto.ChartetoAgent}, configured through system
+ * properties, e.g. {@code -Dcharteto.apiKey=... -Dcharteto.step=30s}.
+ */
+public class ChartetoAgent implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChartetoAgent.class);
+
+    // steps a series may go without updates before the agent forgets it
+    private static final int IDLE_STEPS = 5;
+
+    private final ChartetoConfig config;
+    private final String apiKey;
+    private final Clock clock;
+    private final HttpSender httpClient;
+    private final MeterRegistry registry = new SimpleMeterRegistry();
+    private final List<ChartetoEndpoint> endpoints;
+    private final @Nullable String hostTag;
+    private final DatagramChannel channel;
+    private final Thread receiver;
+    private final ScheduledExecutorService forwarder;
+    private final Counter datagrams;
+    private final Counter malformed;
+    private final String batchIdPrefix = ChartetoBatchId.newPrefix();
+
+    // by series key; guarded by this
+    private final Map<String, MergedSeries> series = new LinkedHashMap<>();
+    private long cycle;
+
+    public ChartetoAgent(ChartetoConfig config) throws IOException {
+        this(config, Clock.SYSTEM, new HttpUrlConnectionSender(config.agentConnectTimeout(), config.agentReadTimeout()));
+    }
+
+    ChartetoAgent(ChartetoConfig config, Clock clock, HttpSender httpClient) throws IOException {
+        config.requireValid();
+        this.config = config;
+        // required even when the config names the agent transport, which leaves the key to the agent
+        this.apiKey = config.apiKey();
+        this.clock = clock;
+        this.httpClient = httpClient;
+        this.hostTag = config.hostTag() == null ? null : new ChartetoNamingConvention().tagKey(config.hostTag());
+        this.endpoints = config.uris().stream()
+                .map(uri -> new ChartetoEndpoint(uri, registry,
+                        new ChartetoRateLimiter(clock, config.maxRequestsPerSecond(), config.maxBytesPerSecond())))
+                .collect(Collectors.toList());
+        this.datagrams = registry.counter("charteto.agent.received");
+        this.malformed = registry.counter("charteto.agent.malformed");
+
+        String address = config.agentAddress();
+        int colon = address.lastIndexOf(':');
+        this.channel = DatagramChannel.open();
+        this.channel.bind(new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))));
+
+        this.receiver = new NamedThreadFactory("charteto-agent-receiver").newThread(this::receive);
+        this.receiver.start();
+
+        long stepMillis = config.step().toMillis();
+        long offset = ChartetoMeterRegistry.publishOffset(ChartetoMeterRegistry.localHostName(), stepMillis);
+        this.forwarder = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("charteto-agent-forwarder"));
+        this.forwarder.scheduleAtFixedRate(this::forwardSafely, ChartetoMeterRegistry.initialDelay(clock.wallTime(), offset, stepMillis),
+                stepMillis, TimeUnit.MILLISECONDS);
+        logger.info("charteto agent listening on {}, forwarding every {}", channel.getLocalAddress(), TimeUtils.format(config.step()));
+    }
+
+    InetSocketAddress address() throws IOException {
+        return (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    /**
+     * The agent's own meters: datagrams received and malformed, requests and bytes per endpoint.
+     */
+    MeterRegistry registry() {
+        return registry;
+    }
+
+    private void receive() {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        while (channel.isOpen()) {
+            try {
+                buffer.clear();
+                SocketAddress from = channel.receive(buffer);
+                if (from == null) {
+                    continue;
+                }
+                buffer.flip();
+                merge(buffer);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                logger.warn("failed to receive from charteto registries", e);
+            } catch (RuntimeException e) {
+                // anything can send to the port; no datagram may stop the receiver
+                malformed.increment();
+                logger.debug("dropped a datagram that failed to merge", e);
+            }
+        }
+    }
+
+    void merge(ByteBuffer datagram) {
+        List<ChartetoAgentCodec.Point> points;
+        try {
+            points = ChartetoAgentCodec.decode(datagram);
+        } catch (IllegalArgumentException e) {
+            malformed.increment();
+            logger.debug("dropped malformed datagram", e);
+            return;
+        }
+        datagrams.increment();
+
+        synchronized (this) {
+            for (ChartetoAgentCodec.Point point : points) {
+                MergedSeries merged = series.computeIfAbsent(point.key(), key -> new MergedSeries(point.series()));
+                merged.value = point.cumulative() ? merged.value + point.value() : point.value();
+                merged.updated = cycle;
+            }
+        }
+    }
+
+    /**
+     * Like {@code PushMeterRegistry.publishSafely}: an exception would stop the scheduled forwarding for good.
+     */
+    private void forwardSafely() {
+        try {
+            forward();
+        } catch (Throwable e) {
+            logger.warn("unexpected exception thrown while forwarding metrics to charteto", e);
+        }
+    }
+
+    /**
+     * Sends cumulative series and the gauges updated during the step that just ended.
+     */
+    void forward() {
+        long stepMillis = config.step().toMillis();
+        long timestamp = clock.wallTime() / stepMillis * stepMillis;
+        long deadline = clock.monotonicTime() + config.step().toNanos() / 2;
+
+        List<ChartetoSeries> forwarded = new ArrayList<>();
+        double[] values;
+        long forwardCycle;
+        synchronized (this) {
+            values = new double[series.size()];
+            for (Iterator<MergedSeries> it = series.values().iterator(); it.hasNext(); ) {
+                MergedSeries merged = it.next();
+                if (cycle - merged.updated >= IDLE_STEPS) {
+                    it.remove();
+                    continue;
+                }
+                if (!"COUNT".equals(merged.series.type()) && merged.updated != cycle) {
+                    continue;
+                }
+                values[forwarded.size()] = merged.value;
+                forwarded.add(merged.series);
+            }
+            forwardCycle = ++cycle;
+        }
+
+        int batchSize = config.batchSize();
+        int batchCount = (forwarded.size() + batchSize - 1) / batchSize;
+        List<ChartetoPayload> payloads = new ArrayList<>(batchCount);
+        for (int i = 0; i < batchCount; i++) {
+            int from = i * batchSize;
+            int to = Math.min(forwarded.size(), from + batchSize);
+            payloads.add(ChartetoMeterRegistry.writePayload(forwarded.subList(from, to), Arrays.copyOfRange(values, from, to),
+                    to - from, timestamp, hostTag, config.compressed(), new ChartetoBatchId(batchIdPrefix, forwardCycle, i, batchCount)));
+        }
+
+        for (ChartetoPayload payload : payloads) {
+            for (ChartetoEndpoint endpoint : endpoints) {
+                if (endpoint.acquire(payload, deadline)) {
+                    endpoint.send(httpClient, apiKey, payload);
+                }
+                else {
+                    logger.warn("dropped a batch of {} points over the rate limit", payload.pointCount());
+                }
+            }
+        }
+    }
+
+    /**
+     * Forwards what has been received one last time.
+     */
+    @Override
+    public void close() {
+        forwarder.shutdown();
+        try {
+            channel.close();
+            receiver.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (IOException e) {
+            logger.debug("failed to close the charteto agent channel", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        forwardSafely();
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        ChartetoAgent agent = new ChartetoAgent(System::getProperty);
+        Runtime.getRuntime().addShutdownHook(new Thread(agent::close, "charteto-agent-shutdown"));
+        // the agent's threads are daemons
+        agent.receiver.join();
+    }
+
+    private static final class MergedSeries {
+        private final ChartetoSeries series;
+        private double value;
+        private long updated;
+
+        MergedSeries(ChartetoSeries series) {
+            this.series = series;
+        }
+    }
+}
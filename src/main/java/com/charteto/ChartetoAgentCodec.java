@@ -0,0 +1,329 @@
+package com.charteto;
+
+import org.jspecify.annotations.Nullable;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Binary format of what registries send to {@link ChartetoAgent}. Every datagram stands alone, so a
+ * lost datagram loses only its own points:
+ * <pre>
+ * datagram := MAGIC VERSION point*
+ * point    := flags name unit tagCount (key value)* value
+ * string   := varint 0 (null) | varint 1, varint length, UTF-8 bytes (added to the datagram's table) | varint 2 + table index
+ * value    := zigzag varint if flags has WHOLE, else 8-byte double
+ * </pre>
+ * Cumulative points carry the increase since the process's last send, other points the current value.
+ * Strings are sent as the registry escaped them for JSON, and repeated strings such as tag keys and
+ * common tags are sent once per datagram. Anything local can send to the agent, so a datagram with a
+ * string that isn't escaped JSON is rejected rather than forwarded into a batch.
+ */
+final class ChartetoAgentCodec {
+
+    /**
+     * Fits comfortably in a loopback socket buffer; a single point larger than this gets a datagram of its own.
+     */
+    static final int MAX_DATAGRAM = 8 * 1024;
+
+    private static final int MAX_UDP_PAYLOAD = 65_507;
+    private static final byte MAGIC = (byte) 0xC7;
+    private static final byte VERSION = 1;
+    private static final int CUMULATIVE = 1;
+    private static final int WHOLE = 2;
+    private static final double WHOLE_LIMIT = 0x1p53;
+
+    private ChartetoAgentCodec() {
+    }
+
+    /**
+     * Packs points into datagrams, handing each full datagram to the sink. The buffer passed to the
+     * sink is reused once the sink returns.
+     */
+    static final class Encoder {
+        private final ByteBuffer buffer = ByteBuffer.allocate(MAX_UDP_PAYLOAD);
+        private final Consumer<ByteBuffer> sink;
+        private final Map<String, Integer> strings = new HashMap<>();
+        private final List<String> table = new ArrayList<>();
+        private int points;
+
+        Encoder(Consumer<ByteBuffer> sink) {
+            this.sink = sink;
+            reset();
+        }
+
+        /**
+         * @return false if the point doesn't fit in a datagram even on its own, and was dropped
+         */
+        boolean add(ChartetoSeries series, boolean cumulative, double value) {
+            int start = buffer.position();
+            int tableSize = table.size();
+            boolean fits;
+            try {
+                write(series, cumulative, value);
+                fits = buffer.position() <= MAX_DATAGRAM || points == 0;
+            } catch (BufferOverflowException e) {
+                fits = false;
+            }
+            if (fits) {
+                points++;
+                return true;
+            }
+
+            // roll back, then retry in a datagram of its own
+            buffer.position(start);
+            while (table.size() > tableSize) {
+                strings.remove(table.remove(table.size() - 1));
+            }
+            if (points == 0) {
+                return false;
+            }
+            flush();
+            return add(series, cumulative, value);
+        }
+
+        void flush() {
+            if (points > 0) {
+                buffer.flip();
+                sink.accept(buffer);
+            }
+            reset();
+        }
+
+        private void reset() {
+            buffer.clear();
+            buffer.put(MAGIC).put(VERSION);
+            strings.clear();
+            table.clear();
+            points = 0;
+        }
+
+        private void write(ChartetoSeries series, boolean cumulative, double value) {
+            boolean whole = Math.abs(value) < WHOLE_LIMIT && value == (long) value;
+            buffer.put((byte) ((cumulative ? CUMULATIVE : 0) | (whole ? WHOLE : 0)));
+            writeString(series.name());
+            writeString(series.unit());
+            writeVarLong(series.tagCount());
+            for (int i = 0; i < series.tagCount(); i++) {
+                writeString(series.tagKey(i));
+                writeString(series.tagValue(i));
+            }
+            if (whole) {
+                long v = (long) value;
+                writeVarLong((v << 1) ^ (v >> 63));
+            }
+            else {
+                buffer.putDouble(value);
+            }
+        }
+
+        private void writeString(@Nullable String s) {
+            if (s == null) {
+                writeVarLong(0);
+                return;
+            }
+            Integer index = strings.get(s);
+            if (index != null) {
+                writeVarLong(2 + index);
+                return;
+            }
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(1);
+            writeVarLong(bytes.length);
+            buffer.put(bytes);
+            strings.put(s, table.size());
+            table.add(s);
+        }
+
+        private void writeVarLong(long v) {
+            while ((v & ~0x7FL) != 0) {
+                buffer.put((byte) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            buffer.put((byte) v);
+        }
+    }
+
+    /**
+     * A decoded point. {@link #key()} identifies the series across processes.
+     */
+    static final class Point {
+        private final ChartetoSeries series;
+        private final String key;
+        private final boolean cumulative;
+        private final double value;
+
+        Point(ChartetoSeries series, String key, boolean cumulative, double value) {
+            this.series = series;
+            this.key = key;
+            this.cumulative = cumulative;
+            this.value = value;
+        }
+
+        ChartetoSeries series() {
+            return series;
+        }
+
+        String key() {
+            return key;
+        }
+
+        boolean cumulative() {
+            return cumulative;
+        }
+
+        double value() {
+            return value;
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the datagram isn't in this format
+     */
+    static List<Point> decode(ByteBuffer datagram) {
+        try {
+            if (datagram.get() != MAGIC || datagram.get() != VERSION) {
+                throw new IllegalArgumentException("not a charteto agent datagram");
+            }
+            List<String> table = new ArrayList<>();
+            List<Point> points = new ArrayList<>();
+            StringBuilder key = new StringBuilder();
+            while (datagram.hasRemaining()) {
+                int flags = datagram.get();
+                String name = readRequiredString(datagram, table);
+                String unit = readString(datagram, table);
+                long tags = readVarLong(datagram);
+                if (tags < 0 || tags > datagram.remaining()) {
+                    throw new IllegalArgumentException("bad tag count " + tags);
+                }
+                int tagCount = (int) tags;
+
+                key.setLength(0);
+                key.append(name).append('\0').append(unit);
+                String[] tagKeys = new String[tagCount];
+                String[] tagValues = new String[tagCount];
+                for (int i = 0; i < tagCount; i++) {
+                    tagKeys[i] = readRequiredString(datagram, table);
+                    tagValues[i] = readRequiredString(datagram, table);
+                    key.append('\0').append(tagKeys[i]).append('=').append(tagValues[i]);
+                }
+
+                double value;
+                if ((flags & WHOLE) != 0) {
+                    long v = readVarLong(datagram);
+                    value = (v >>> 1) ^ -(v & 1);
+                }
+                else {
+                    value = datagram.getDouble();
+                }
+
+                boolean cumulative = (flags & CUMULATIVE) != 0;
+                String type = cumulative ? "COUNT" : "GAUGE";
+                points.add(new Point(ChartetoSeries.escaped(name, type, unit, tagKeys, tagValues),
+                        key.append('\0').append(type).toString(), cumulative, value));
+            }
+            return points;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("truncated charteto agent datagram", e);
+        }
+    }
+
+    private static String readRequiredString(ByteBuffer datagram, List<String> table) {
+        String s = readString(datagram, table);
+        if (s == null) {
+            throw new IllegalArgumentException("missing name or tag");
+        }
+        return s;
+    }
+
+    /**
+     * Reads from a heap buffer, as datagrams are received into.
+     */
+    private static @Nullable String readString(ByteBuffer datagram, List<String> table) {
+        long ref = readVarLong(datagram);
+        if (ref == 0) {
+            return null;
+        }
+        if (ref == 1) {
+            long length = readVarLong(datagram);
+            if (length < 0 || length > datagram.remaining()) {
+                throw new IllegalArgumentException("bad string length " + length);
+            }
+            String s = new String(datagram.array(), datagram.arrayOffset() + datagram.position(), (int) length,
+                    StandardCharsets.UTF_8);
+            datagram.position(datagram.position() + (int) length);
+            if (!isEscaped(s)) {
+                throw new IllegalArgumentException("string not escaped for JSON");
+            }
+            table.add(s);
+            return s;
+        }
+        // varints decode to any long, including negative ones
+        if (ref < 2 || ref - 2 >= table.size()) {
+            throw new IllegalArgumentException("bad string reference " + ref);
+        }
+        return table.get((int) (ref - 2));
+    }
+
+    /**
+     * Whether {@code s} can be written between quotes in JSON as it is.
+     */
+    static boolean isEscaped(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c < 0x20) {
+                return false;
+            }
+            if (c != '\\') {
+                continue;
+            }
+            if (++i == s.length()) {
+                return false;
+            }
+            switch (s.charAt(i)) {
+                case '"':
+                case '\\':
+                case '/':
+                case 'b':
+                case 'f':
+                case 'n':
+                case 'r':
+                case 't':
+                    break;
+                case 'u':
+                    if (i + 4 >= s.length()) {
+                        return false;
+                    }
+                    for (int j = i + 1; j <= i + 4; j++) {
+                        if (Character.digit(s.charAt(j), 16) < 0) {
+                            return false;
+                        }
+                    }
+                    i += 4;
+                    break;
+                default:
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private static long readVarLong(ByteBuffer datagram) {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = datagram.get();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IllegalArgumentException("varint too long");
+    }
+}
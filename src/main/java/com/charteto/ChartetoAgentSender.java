@@ -0,0 +1,109 @@
+package com.charteto;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sends a registry's points to a {@link ChartetoAgent} over UDP, fire-and-forget. Cumulative series
+ * are sent as the increase since the previous send, so the agent can sum what several processes send
+ * for the same series; unchanged ones are still sent, which keeps the agent from expiring them. A
+ * datagram the socket can't take right away is dropped rather than waited for.
+ */
+class ChartetoAgentSender implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChartetoAgentSender.class);
+
+    private final InetSocketAddress agent;
+    private final MeterRegistry registry;
+    private final DatagramChannel channel;
+    private final ChartetoAgentCodec.Encoder encoder = new ChartetoAgentCodec.Encoder(this::sendDatagram);
+
+    // last value sent per cumulative series; series are cached by the registry, so identity is enough
+    private Map<ChartetoSeries, Double> sentTotals = new HashMap<>();
+    private int sent;
+    private int dropped;
+
+    ChartetoAgentSender(String address, MeterRegistry registry) {
+        int colon = address.lastIndexOf(':');
+        this.agent = new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+        this.registry = registry;
+        try {
+            this.channel = DatagramChannel.open();
+            this.channel.configureBlocking(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Called by one publish at a time.
+     */
+    void send(List<ChartetoSeries> series, double[] values) {
+        Map<ChartetoSeries, Double> totals = new HashMap<>(2 * sentTotals.size());
+        int oversized = 0;
+        for (int i = 0; i < series.size(); i++) {
+            ChartetoSeries s = series.get(i);
+            double value = values[i];
+            boolean cumulative = "COUNT".equals(s.type());
+            if (cumulative) {
+                totals.put(s, value);
+                Double previous = sentTotals.get(s);
+                // a total that went down belongs to a new meter, e.g. one removed and registered again
+                value = previous == null || previous > value ? value : value - previous;
+            }
+            if (!encoder.add(s, cumulative, value)) {
+                oversized++;
+            }
+        }
+        encoder.flush();
+        sentTotals = totals;
+
+        count("sent", sent);
+        // a point too large for any datagram counts as a dropped datagram
+        count("dropped", dropped + oversized);
+        sent = 0;
+        dropped = 0;
+    }
+
+    private void sendDatagram(ByteBuffer datagram) {
+        try {
+            if (channel.send(datagram, agent) > 0) {
+                sent++;
+                return;
+            }
+        } catch (IOException e) {
+            logger.debug("failed to send metrics to the charteto agent at {}", agent, e);
+        }
+        dropped++;
+    }
+
+    private void count(String outcome, int datagrams) {
+        if (datagrams > 0) {
+            Counter.builder("charteto.agent.datagrams")
+                    .description("Datagrams sent to the charteto agent, or dropped")
+                    .tag("outcome", outcome)
+                    .register(registry)
+                    .increment(datagrams);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.debug("failed to close the charteto agent channel", e);
+        }
+    }
+}
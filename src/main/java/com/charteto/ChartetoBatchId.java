@@ -0,0 +1,80 @@
+package com.charteto;
+
+import org.jspecify.annotations.Nullable;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Identifies a batch as {@code prefix-cycle-sequence}: a random prefix drawn once per publisher, the
+ * publish cycle, and the batch's position among the {@link #batchCount()} batches the cycle sent to
+ * the same endpoints. Lets the backend dedupe retries and notice missing batches without a UUID,
+ * whose {@code SecureRandom} can block on entropy-starved hosts.
+ */
+final class ChartetoBatchId {
+
+    private final String prefix;
+    private final long cycle;
+    private final int sequence;
+    private final int batchCount;
+    private final String id;
+
+    ChartetoBatchId(String prefix, long cycle, int sequence, int batchCount) {
+        this.prefix = prefix;
+        this.cycle = cycle;
+        this.sequence = sequence;
+        this.batchCount = batchCount;
+        this.id = prefix + '-' + cycle + '-' + sequence;
+    }
+
+    /**
+     * Random, but from {@link ThreadLocalRandom}, which never blocks.
+     */
+    static String newPrefix() {
+        return Long.toString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE, 36);
+    }
+
+    long cycle() {
+        return cycle;
+    }
+
+    int sequence() {
+        return sequence;
+    }
+
+    int batchCount() {
+        return batchCount;
+    }
+
+    /**
+     * Batches between {@code previous} and this one that were never acknowledged, if this one is
+     * later. Cycles in between are skipped over, as their batch counts are unknown.
+     */
+    long missingSince(@Nullable ChartetoBatchId previous) {
+        if (previous == null || !previous.prefix.equals(prefix) || !isAfter(previous)) {
+            return 0;
+        }
+        if (cycle == previous.cycle) {
+            return sequence - previous.sequence - 1;
+        }
+        return Math.max(0, previous.batchCount - previous.sequence - 1) + sequence;
+    }
+
+    boolean isAfter(ChartetoBatchId other) {
+        return cycle > other.cycle || cycle == other.cycle && sequence > other.sequence;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof ChartetoBatchId && id.equals(((ChartetoBatchId) o).id);
+    }
+
+    @Override
+    public int hashCode() {
+        return id.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return id;
+    }
+}
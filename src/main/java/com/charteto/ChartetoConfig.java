@@ -1,12 +1,18 @@
 package com.charteto;
 
 import io.micrometer.core.instrument.config.MeterRegistryConfigValidator;
+import io.micrometer.core.instrument.config.validate.InvalidReason;
 import io.micrometer.core.instrument.config.validate.PropertyValidator;
 import io.micrometer.core.instrument.config.validate.Validated;
 import io.micrometer.core.instrument.push.PushRegistryConfig;
 import org.jspecify.annotations.Nullable;
 
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 public interface ChartetoConfig extends PushRegistryConfig {
 
@@ -28,6 +34,207 @@ public interface ChartetoConfig extends PushRegistryConfig {
         return PropertyValidator.getUrlString(this, "uri").orElse("https://api.charteto.com");
     }
 
+    /**
+     * Endpoints to publish to, as a comma-separated list (e.g. a primary and a DR region, or ingestion shards).
+     * Defaults to {@link #uri()} alone.
+     */
+    default List<String> uris() {
+        String property = prefix() + ".uris";
+        String uris = PropertyValidator.getString(this, "uris").orElse(null);
+        if (uris == null) {
+            return Collections.singletonList(uri());
+        }
+
+        List<String> parsed = new ArrayList<>();
+        for (String uri : uris.split(",")) {
+            uri = uri.trim();
+            if (uri.isEmpty()) {
+                continue;
+            }
+            try {
+                new URL(uri);
+            } catch (MalformedURLException e) {
+                Validated.invalid(property, uris, "must contain only valid URLs", InvalidReason.MALFORMED, e).orThrow();
+            }
+            parsed.add(uri);
+        }
+        if (parsed.isEmpty()) {
+            Validated.invalid(property, uris, "must contain at least one URL", InvalidReason.MISSING).orThrow();
+        }
+        return Collections.unmodifiableList(parsed);
+    }
+
+    /**
+     * Whether to publish to Charteto directly or through a {@link ChartetoAgent} on this host.
+     */
+    default ChartetoTransport transport() {
+        return PropertyValidator.getEnum(this, ChartetoTransport.class, "transport").orElse(ChartetoTransport.HTTP);
+    }
+
+    /**
+     * {@code host:port} the {@link ChartetoAgent} listens on, and registries with the agent transport send to.
+     */
+    default String agentAddress() {
+        String property = prefix() + ".agentAddress";
+        String address = PropertyValidator.getString(this, "agentAddress").orElse("localhost:8127");
+        int colon = address.lastIndexOf(':');
+        try {
+            int port = Integer.parseInt(address.substring(colon + 1));
+            if (colon <= 0 || port <= 0 || port > 65535) {
+                throw new NumberFormatException(address);
+            }
+        } catch (NumberFormatException e) {
+            Validated.invalid(property, address, "must be host:port", InvalidReason.MALFORMED, e).orThrow();
+        }
+        return address;
+    }
+
+    /**
+     * Connect timeout of {@link ChartetoAgent}'s requests to the endpoints. Reads the same property as
+     * the deprecated {@link #connectTimeout()}.
+     */
+    default Duration agentConnectTimeout() {
+        return PropertyValidator.getDuration(this, "connectTimeout").orElse(Duration.ofSeconds(1));
+    }
+
+    /**
+     * Read timeout of {@link ChartetoAgent}'s requests to the endpoints. Reads the same property as
+     * the deprecated {@link #readTimeout()}.
+     */
+    default Duration agentReadTimeout() {
+        return PropertyValidator.getDuration(this, "readTimeout").orElse(Duration.ofSeconds(10));
+    }
+
+    /**
+     * How metrics are distributed across {@link #uris()}.
+     */
+    default ChartetoRouting routing() {
+        return PropertyValidator.getEnum(this, ChartetoRouting.class, "routing").orElse(ChartetoRouting.REPLICATE);
+    }
+
+    /**
+     * Whether to gzip request bodies. The body is compressed once and shared by all endpoints.
+     */
+    default boolean compressed() {
+        return PropertyValidator.getBoolean(this, "compressed").orElse(false);
+    }
+
+    /**
+     * Requests per second allowed per endpoint. Zero or less disables request rate limiting.
+     */
+    default int maxRequestsPerSecond() {
+        return PropertyValidator.getInteger(this, "maxRequestsPerSecond").orElse(0);
+    }
+
+    /**
+     * Request body bytes per second allowed per endpoint. Zero or less disables byte rate limiting.
+     */
+    default int maxBytesPerSecond() {
+        return PropertyValidator.getInteger(this, "maxBytesPerSecond").orElse(0);
+    }
+
+    /**
+     * Meter name patterns (comma-separated, {@code *} matches any characters) that are sent first
+     * when a publish runs over its rate budget, e.g. {@code http.server.*,jvm.memory.used}.
+     */
+    default List<String> priorityMeters() {
+        String patterns = PropertyValidator.getString(this, "priorityMeters").orElse(null);
+        if (patterns == null) {
+            return Collections.emptyList();
+        }
+
+        List<String> parsed = new ArrayList<>();
+        for (String pattern : patterns.split(",")) {
+            if (!pattern.trim().isEmpty()) {
+                parsed.add(pattern.trim());
+            }
+        }
+        return Collections.unmodifiableList(parsed);
+    }
+
+    /**
+     * Batches held back for the next step when a publish runs over its rate budget. Beyond this the
+     * oldest deferred batches are dropped.
+     */
+    default int maxDeferredBatches() {
+        return PropertyValidator.getInteger(this, "maxDeferredBatches").orElse(100);
+    }
+
+    /**
+     * Time a gauge's value function may take. Gauges over budget are refreshed off the publishing
+     * thread and publish their last value when a refresh doesn't complete within the budget.
+     */
+    default Duration gaugeSamplingBudget() {
+        return PropertyValidator.getDuration(this, "gaugeSamplingBudget").orElse(Duration.ofMillis(100));
+    }
+
+    /**
+     * Threads used to refresh slow gauges in parallel.
+     */
+    default int gaugeSamplingThreads() {
+        return PropertyValidator.getInteger(this, "gaugeSamplingThreads").orElse(2);
+    }
+
+    /**
+     * What to publish for NaN and infinite values. They're dropped by default.
+     */
+    default ChartetoNonFiniteValues nonFiniteValues() {
+        return PropertyValidator.getEnum(this, ChartetoNonFiniteValues.class, "nonFiniteValues")
+                .orElse(ChartetoNonFiniteValues.DROP);
+    }
+
+    /**
+     * Hashed to a fixed offset into each step at which this registry publishes, so a fleet sharing
+     * a step spreads its sends over the step instead of sending at once. Defaults to the local host
+     * name. Point timestamps stay aligned to step boundaries whatever the offset.
+     */
+    default @Nullable String publishOffsetKey() {
+        return PropertyValidator.getString(this, "publishOffsetKey").orElse(null);
+    }
+
+    /**
+     * How much of what was published to keep in memory for {@link ChartetoMeterRegistry#history()}.
+     * Zero, the default, keeps nothing.
+     */
+    default Duration historyRetention() {
+        return PropertyValidator.getDuration(this, "historyRetention").orElse(Duration.ZERO);
+    }
+
+    /**
+     * Memory the history may use, in bytes.
+     */
+    default int historyMaxBytes() {
+        return PropertyValidator.getInteger(this, "historyMaxBytes").orElse(16 * 1024 * 1024);
+    }
+
+    /**
+     * Estimated heap, in bytes, that meters may retain before the largest idle ones are removed from
+     * the registry. Zero or less, the default, never removes meters.
+     * <p>
+     * The application's handles to an evicted meter keep working, but the meter isn't published until
+     * it's recorded to again, which registers it again on the next publish. Each eviction is logged at
+     * WARN with the meter's id.
+     */
+    default int meterMemoryBudget() {
+        return PropertyValidator.getInteger(this, "meterMemoryBudget").orElse(0);
+    }
+
+    /**
+     * Whether to send each series' name, type, unit, description and tags once, over a separate
+     * metadata request, and points with only a series id, timestamp and value. Endpoints that can't be
+     * synced, or the agent transport, get self-describing points as usual.
+     */
+    default boolean metadataSync() {
+        return PropertyValidator.getBoolean(this, "metadataSync").orElse(false);
+    }
+
+    /**
+     * Whether meter descriptions are sent with the metadata when {@link #metadataSync()} is enabled.
+     */
+    default boolean descriptions() {
+        return PropertyValidator.getBoolean(this, "descriptions").orElse(true);
+    }
+
     default Duration step() {
         return PropertyValidator.getDuration(this, "step").orElse(Duration.ofSeconds(10L));
     }
@@ -37,7 +244,12 @@ public interface ChartetoConfig extends PushRegistryConfig {
     }
 
     default Validated<?> validate() {
-        return MeterRegistryConfigValidator.checkAll(this, (c) -> PushRegistryConfig.validate(c), MeterRegistryConfigValidator.checkRequired("apiKey", ChartetoConfig::apiKey), MeterRegistryConfigValidator.checkRequired("uri", ChartetoConfig::uri));
+        Validated<ChartetoTransport> transport = MeterRegistryConfigValidator.check("transport", ChartetoConfig::transport).apply(this);
+        if (transport.isValid() && transport.get() == ChartetoTransport.AGENT) {
+            // the agent holds the api key and endpoints
+            return MeterRegistryConfigValidator.checkAll(this, (c) -> PushRegistryConfig.validate(c), (c) -> transport, MeterRegistryConfigValidator.check("agentAddress", ChartetoConfig::agentAddress), MeterRegistryConfigValidator.check("nonFiniteValues", ChartetoConfig::nonFiniteValues));
+        }
+        return MeterRegistryConfigValidator.checkAll(this, (c) -> transport, (c) -> PushRegistryConfig.validate(c), MeterRegistryConfigValidator.checkRequired("apiKey", ChartetoConfig::apiKey), MeterRegistryConfigValidator.checkRequired("uri", ChartetoConfig::uri), MeterRegistryConfigValidator.check("uris", ChartetoConfig::uris), MeterRegistryConfigValidator.check("routing", ChartetoConfig::routing), MeterRegistryConfigValidator.check("nonFiniteValues", ChartetoConfig::nonFiniteValues));
     }
 
 
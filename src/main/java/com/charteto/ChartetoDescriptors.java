@@ -0,0 +1,148 @@
+package com.charteto;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Series descriptors for {@link ChartetoConfig#metadataSync()}: each series gets an id when first
+ * published, and its name, type, unit, description and tags are written once, for
+ * {@code /api/v1/metadata}, instead of with every point.
+ * <p>
+ * Every new descriptor bumps the version, so an endpoint that has the descriptors up to some version
+ * is only sent those added since. A meter registered again after being removed is a new series and
+ * gets a new id. Descriptors go with the series they describe.
+ */
+final class ChartetoDescriptors {
+
+    private final String source;
+
+    // weak, so a series dropped by the registry takes its descriptor along; descriptors don't refer back
+    private final Map<ChartetoSeries, Descriptor> bySeries = new WeakHashMap<>();
+    private int lastId;
+    private long version;
+
+    /**
+     * @param source scopes ids, which the backend can't tell apart across registries or restarts
+     */
+    ChartetoDescriptors(String source) {
+        this.source = source;
+    }
+
+    String source() {
+        return source;
+    }
+
+    synchronized long version() {
+        return version;
+    }
+
+    /**
+     * Ids of {@code series}, assigning ids to those seen for the first time.
+     */
+    synchronized int[] ids(List<ChartetoSeries> series) {
+        int[] ids = new int[series.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ChartetoSeries s = series.get(i);
+            Descriptor descriptor = bySeries.get(s);
+            if (descriptor == null) {
+                descriptor = new Descriptor(++lastId, ++version, s);
+                bySeries.put(s, descriptor);
+            }
+            ids[i] = descriptor.id;
+        }
+        return ids;
+    }
+
+    /**
+     * The metadata request for at most {@code limit} of the descriptors added after {@code since} up to
+     * {@code upTo}, the oldest first. Since zero, it's the start of the full set, which replaces whatever
+     * the backend has for this source; later requests add to it.
+     */
+    synchronized Chunk write(long since, long upTo, int limit) {
+        List<Descriptor> added = new ArrayList<>();
+        for (Descriptor descriptor : bySeries.values()) {
+            if (descriptor.version > since && descriptor.version <= upTo) {
+                added.add(descriptor);
+            }
+        }
+        // ids and versions are assigned together, so this is also the order they were added in
+        added.sort(Comparator.comparingInt(descriptor -> descriptor.id));
+        long version = upTo;
+        if (added.size() > limit) {
+            added = added.subList(0, limit);
+            version = added.get(limit - 1).version;
+        }
+
+        StringBuilder body = new StringBuilder(64 + 128 * added.size());
+        body.append("{\"source\":\"").append(source).append("\",\"version\":").append(version)
+                .append(",\"full\":").append(since == 0)
+                .append(",\"descriptors\":[");
+        for (int i = 0; i < added.size(); i++) {
+            if (i > 0) {
+                body.append(',');
+            }
+            body.append(added.get(i).json);
+        }
+        return new Chunk(version, body.append("]}").toString());
+    }
+
+    static final class Chunk {
+        private final long version;
+        private final String body;
+
+        Chunk(long version, String body) {
+            this.version = version;
+            this.body = body;
+        }
+
+        /**
+         * Version the endpoint has every descriptor up to once this is sent.
+         */
+        long version() {
+            return version;
+        }
+
+        String body() {
+            return body;
+        }
+    }
+
+    private static final class Descriptor {
+        private final int id;
+        private final long version;
+        private final String json;
+
+        Descriptor(int id, long version, ChartetoSeries series) {
+            this.id = id;
+            this.version = version;
+            this.json = json(id, series);
+        }
+
+        private static String json(int id, ChartetoSeries series) {
+            StringBuilder json = new StringBuilder(128);
+            json.append("{\"id\":").append(id)
+                    .append(",\"name\":\"").append(series.name()).append('"')
+                    .append(",\"type\":\"").append(series.type()).append('"');
+            if (series.unit() != null) {
+                json.append(",\"unit\":\"").append(series.unit()).append('"');
+            }
+            if (series.description() != null) {
+                json.append(",\"description\":\"").append(series.description()).append('"');
+            }
+            if (series.tagCount() > 0) {
+                json.append(",\"tags\":{");
+                for (int i = 0; i < series.tagCount(); i++) {
+                    if (i > 0) {
+                        json.append(',');
+                    }
+                    json.append('"').append(series.tagKey(i)).append("\":\"").append(series.tagValue(i)).append('"');
+                }
+                json.append('}');
+            }
+            return json.append('}').toString();
+        }
+    }
+}
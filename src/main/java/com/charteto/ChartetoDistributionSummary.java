@@ -0,0 +1,24 @@
+package com.charteto;
+
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.cumulative.CumulativeDistributionSummary;
+import io.micrometer.core.instrument.distribution.DistributionStatisticConfig;
+
+/**
+ * Cumulative distribution summary whose percentiles and histogram buckets come from a {@link ChartetoHistogram}.
+ * Percentiles cover the last completed step rather than a rolling {@code bufferLength} window.
+ */
+class ChartetoDistributionSummary extends CumulativeDistributionSummary {
+
+    private final ChartetoHistogram histogram;
+
+    ChartetoDistributionSummary(Id id, Clock clock, DistributionStatisticConfig distributionStatisticConfig,
+                                double scale, ChartetoHistogram histogram) {
+        super(id, clock, distributionStatisticConfig, scale, histogram);
+        this.histogram = histogram;
+    }
+
+    ChartetoHistogram histogram() {
+        return histogram;
+    }
+}
@@ -0,0 +1,235 @@
+package com.charteto;
+
+import java.math.BigInteger;
+
+/**
+ * Writes doubles as the shortest decimal that parses back to the same value, straight into a
+ * {@link StringBuilder} and without allocating. Uses Giulietti's Schubfach algorithm; whole values
+ * below 2^53 take an integer fast path and are written without a fraction, e.g. {@code 42} rather
+ * than {@code 42.0}. Numbers are laid out as JavaScript does, so the output is valid JSON.
+ * <p>
+ * NaN and infinities have no JSON representation and must be handled by the caller.
+ */
+final class ChartetoDoubleFormat {
+
+    private static final int P = 53; // precision, in bits
+    private static final int Q_MIN = -1074; // exponent of the smallest subnormal
+    private static final long C_MIN = 1L << (P - 1);
+    private static final int C_TINY = 3; // subnormal significands below this need an extra digit
+    private static final int K_MIN = -324;
+    private static final int K_MAX = 292;
+    private static final long T_MASK = (1L << (P - 1)) - 1;
+    private static final int BQ_MASK = 0x7FF;
+    private static final long MASK_63 = (1L << 63) - 1;
+    private static final double INTEGER_LIMIT = 0x1p53;
+
+    /**
+     * The 126-bit approximations g of 10^-k, where 10^-k = β 2^(flog2pow10(-k) - 125) with
+     * 2^125 ≤ β < 2^126 and g = ⌊β⌋ + 1, split into its upper and lower 63 bits.
+     */
+    private static final long[] G = new long[2 * (K_MAX - K_MIN + 1)];
+
+    static {
+        BigInteger lower63 = BigInteger.ONE.shiftLeft(63).subtract(BigInteger.ONE);
+        for (int k = K_MIN; k <= K_MAX; k++) {
+            int r = flog2pow10(-k) - 125;
+            BigInteger numerator = -k >= 0 ? BigInteger.TEN.pow(-k) : BigInteger.ONE;
+            BigInteger denominator = -k >= 0 ? BigInteger.ONE : BigInteger.TEN.pow(k);
+            if (r < 0) {
+                numerator = numerator.shiftLeft(-r);
+            }
+            else {
+                denominator = denominator.shiftLeft(r);
+            }
+            BigInteger g = numerator.divide(denominator).add(BigInteger.ONE);
+            G[(k - K_MIN) << 1] = g.shiftRight(63).longValue();
+            G[(k - K_MIN) << 1 | 1] = g.and(lower63).longValue();
+        }
+    }
+
+    private ChartetoDoubleFormat() {
+    }
+
+    /**
+     * Appends {@code value}, which must be finite.
+     */
+    static void append(StringBuilder out, double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        if (bits < 0) {
+            out.append('-');
+            bits &= MASK_63;
+            value = -value;
+        }
+
+        if (value < INTEGER_LIMIT && value == (long) value) {
+            out.append((long) value);
+            return;
+        }
+
+        long t = bits & T_MASK;
+        int bq = (int) (bits >>> (P - 1)) & BQ_MASK;
+        if (bq == BQ_MASK) {
+            throw new IllegalArgumentException("non-finite value " + value);
+        }
+        if (bq != 0) {
+            toDecimal(out, Q_MIN - 1 + bq, C_MIN | t, 0);
+        }
+        else {
+            // subnormal; zero took the integer path
+            if (t < C_TINY) {
+                toDecimal(out, Q_MIN, 10 * t, -1);
+            }
+            else {
+                toDecimal(out, Q_MIN, t, 0);
+            }
+        }
+    }
+
+    /**
+     * Finds the shortest decimal in the rounding interval of c 2^q, and the closest one to it if
+     * there are several.
+     */
+    private static void toDecimal(StringBuilder out, int q, long c, int dk) {
+        int odd = (int) c & 0x1;
+        long cb = c << 2;
+        long cbr = cb + 2;
+        long cbl;
+        int k;
+        if (c != C_MIN | q == Q_MIN) {
+            cbl = cb - 2;
+            k = flog10pow2(q);
+        }
+        else {
+            // the interval is asymmetric at powers of two
+            cbl = cb - 1;
+            k = flog10threeQuartersPow2(q);
+        }
+        int h = q + flog2pow10(-k) + 2;
+
+        long g1 = G[(k - K_MIN) << 1];
+        long g0 = G[(k - K_MIN) << 1 | 1];
+        long vb = roundToOdd(g1, g0, cb << h);
+        long vbl = roundToOdd(g1, g0, cbl << h);
+        long vbr = roundToOdd(g1, g0, cbr << h);
+
+        long s = vb >> 2;
+        if (s >= 100) {
+            // one digit less, if one of its neighbours is in the interval
+            long sp10 = 10 * multiplyHigh(s, 115_292_150_460_684_698L << 4);
+            long tp10 = sp10 + 10;
+            boolean upin = vbl + odd <= sp10 << 2;
+            boolean wpin = (tp10 << 2) + odd <= vbr;
+            if (upin != wpin) {
+                write(out, upin ? sp10 : tp10, k);
+                return;
+            }
+        }
+
+        long t = s + 1;
+        boolean uin = vbl + odd <= s << 2;
+        boolean win = (t << 2) + odd <= vbr;
+        if (uin != win) {
+            write(out, uin ? s : t, k + dk);
+            return;
+        }
+        long cmp = vb - (s + t << 1);
+        write(out, cmp < 0 || cmp == 0 && (s & 0x1) == 0 ? s : t, k + dk);
+    }
+
+    private static long roundToOdd(long g1, long g0, long cp) {
+        long x1 = multiplyHigh(g0, cp);
+        long y0 = g1 * cp;
+        long y1 = multiplyHigh(g1, cp);
+        long z = (y0 >>> 1) + x1;
+        long vbp = y1 + (z >>> 63);
+        return vbp | (z & MASK_63) + MASK_63 >>> 63;
+    }
+
+    /**
+     * Writes f 10^e, f > 0: plain when the leading digit's exponent is in [-6, 20], as JavaScript
+     * does, otherwise in scientific notation.
+     */
+    private static void write(StringBuilder out, long f, int e) {
+        while (f % 10 == 0) {
+            f /= 10;
+            e++;
+        }
+        int length = digits(f);
+        int exponent = e + length - 1;
+
+        if (exponent < -6 || exponent > 20) {
+            appendDigits(out, f, length, 1);
+            out.append('e').append(exponent);
+        }
+        else if (e >= 0) {
+            appendDigits(out, f, length, length);
+            for (int i = 0; i < e; i++) {
+                out.append('0');
+            }
+        }
+        else if (exponent >= 0) {
+            appendDigits(out, f, length, exponent + 1);
+        }
+        else {
+            out.append("0.");
+            for (int i = -1; i > exponent; i--) {
+                out.append('0');
+            }
+            appendDigits(out, f, length, length);
+        }
+    }
+
+    /**
+     * Appends the {@code length} digits of {@code f} with a decimal point after the first
+     * {@code integerDigits} of them, unless that's all of them.
+     */
+    private static void appendDigits(StringBuilder out, long f, int length, int integerDigits) {
+        int start = out.length();
+        int end = start + length + (integerDigits < length ? 1 : 0);
+        out.setLength(end);
+        for (int i = length - 1, pos = end - 1; i >= 0; i--, pos--) {
+            if (i == integerDigits - 1 && integerDigits < length) {
+                out.setCharAt(pos--, '.');
+            }
+            out.setCharAt(pos, (char) ('0' + f % 10));
+            f /= 10;
+        }
+    }
+
+    private static int digits(long f) {
+        int length = 1;
+        for (long bound = 10; length < 19 && f >= bound; bound *= 10) {
+            length++;
+        }
+        return length;
+    }
+
+    // ⌊e log10(2)⌋, for |e| ≤ 5456721
+    private static int flog10pow2(int e) {
+        return (int) (e * 661_971_961_083L >> 41);
+    }
+
+    // ⌊e log10(3/4 2)⌋, for |e| ≤ 5456721
+    private static int flog10threeQuartersPow2(int e) {
+        return (int) (e * 661_971_961_083L + -274_743_187_321L >> 41);
+    }
+
+    // ⌊e log2(10)⌋, for |e| ≤ 1233
+    private static int flog2pow10(int e) {
+        return (int) (e * 913_124_641_741L >> 38);
+    }
+
+    // Math.multiplyHigh, which needs Java 9
+    static long multiplyHigh(long x, long y) {
+        long x1 = x >> 32;
+        long x2 = x & 0xFFFFFFFFL;
+        long y1 = y >> 32;
+        long y2 = y & 0xFFFFFFFFL;
+        long z2 = x2 * y2;
+        long t = x1 * y2 + (z2 >>> 32);
+        long z1 = t & 0xFFFFFFFFL;
+        long z0 = t >> 32;
+        z1 += x2 * y1;
+        return x1 * y1 + z0 + (z1 >> 32);
+    }
+}
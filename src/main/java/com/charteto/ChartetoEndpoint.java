@@ -0,0 +1,230 @@
+package com.charteto;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.ipc.http.HttpSender;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A single Charteto ingestion endpoint. Sends are isolated per endpoint, so a failing DR region
+ * or shard never prevents the others from receiving their batches, and each endpoint reports its
+ * own request and byte counts.
+ */
+class ChartetoEndpoint {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChartetoEndpoint.class);
+
+    private final String uri;
+    private final String metricsUrl;
+    private final String metadataUrl;
+    private final MeterRegistry registry;
+    private final ChartetoRateLimiter rateLimiter;
+
+    // sends to an endpoint are serialized by the publish that owns it
+    private @Nullable ChartetoBatchId lastAcknowledged;
+    // batches held back for a later publish, not missing unless they're dropped or fail
+    private final Set<ChartetoBatchId> deferred = new HashSet<>();
+    // the descriptors version this endpoint is known to have; zero before the first sync and after a
+    // failed send, since the backend may have restarted or we may be talking to another instance
+    private long metadataVersion;
+
+    ChartetoEndpoint(String uri, MeterRegistry registry, ChartetoRateLimiter rateLimiter) {
+        this.uri = uri;
+        this.metricsUrl = uri + "/api/v1/metrics";
+        this.metadataUrl = uri + "/api/v1/metadata";
+        this.registry = registry;
+        this.rateLimiter = rateLimiter;
+    }
+
+    String uri() {
+        return uri;
+    }
+
+    /**
+     * Takes rate budget for sending {@code payload}, waiting at most until {@code deadlineNanos}.
+     */
+    boolean acquire(ChartetoPayload payload, long deadlineNanos) {
+        return rateLimiter.acquire(payload.body().length, deadlineNanos);
+    }
+
+    /**
+     * Posts an already serialized batch. Never throws; failures are logged and counted.
+     */
+    Outcome send(HttpSender httpClient, String apiKey, ChartetoPayload payload) {
+        try {
+            HttpSender.Request.Builder request = httpClient.post(metricsUrl)
+                    .withHeader("X-API-Key", apiKey)
+                    .withContent("application/json", payload.body());
+            if (payload.compressed()) {
+                request.withHeader("Content-Encoding", "gzip");
+            }
+
+            HttpSender.Response response = request.send();
+            sentBytes().increment(payload.body().length);
+            if (response.isSuccessful()) {
+                rateLimiter.succeeded();
+                requests("success").increment();
+                acknowledged(payload, response.body());
+                if (payload.batchId() != null) {
+                    deferred.remove(payload.batchId());
+                }
+                logger.debug("sent {} meters to charteto endpoint {}", payload.meterCount(), uri);
+                return Outcome.SENT;
+            }
+            requests("failure").increment();
+            if (response.code() == 429) {
+                // the API's own limit is tighter than ours; stop spending budget until it refills
+                rateLimiter.throttle();
+                logger.warn("charteto endpoint {} is rate limiting metrics", uri);
+                return Outcome.THROTTLED;
+            }
+            logger.error("failed to send metrics to charteto endpoint {}: {}", uri, response.body());
+        } catch (Throwable ex) {
+            requests("failure").increment();
+            logger.warn("failed to send metrics to charteto endpoint " + uri, ex);
+        }
+        metadataVersion = 0;
+        if (payload.batchId() != null) {
+            lost(payload.batchId());
+        }
+        return Outcome.FAILED;
+    }
+
+    /**
+     * Notes that a batch was held back for a later publish, so acknowledgements of later batches don't
+     * count it as missing in the meantime.
+     */
+    void deferred(ChartetoBatchId batchId) {
+        deferred.add(batchId);
+    }
+
+    /**
+     * Notes that a batch was given up on. If it was deferred and a later batch was acknowledged since,
+     * it's counted as a gap now.
+     */
+    void lost(ChartetoBatchId batchId) {
+        if (deferred.remove(batchId) && lastAcknowledged != null && lastAcknowledged.isAfter(batchId)) {
+            gaps().increment();
+        }
+    }
+
+    /**
+     * Sends the descriptors this endpoint doesn't have yet, all of them after a failed send, at most
+     * {@code batchSize} per request. Each request takes rate budget like a batch, waiting at most until
+     * {@code deadlineNanos}. Never throws.
+     *
+     * @return whether the endpoint has every descriptor, so points may be sent as ids only
+     */
+    boolean syncMetadata(HttpSender httpClient, String apiKey, ChartetoDescriptors descriptors, int batchSize,
+                         boolean compress, long deadlineNanos) {
+        long version = descriptors.version();
+        while (metadataVersion < version) {
+            ChartetoDescriptors.Chunk chunk = descriptors.write(metadataVersion, version, batchSize);
+            ChartetoPayload payload = ChartetoPayload.of(chunk.body(), 0, 0, compress);
+            // over the rate budget, what was sent so far is kept and the rest follows with the next batch
+            if (!acquire(payload, deadlineNanos) || !sendMetadata(httpClient, apiKey, payload)) {
+                return false;
+            }
+            metadataVersion = chunk.version();
+        }
+        return true;
+    }
+
+    private boolean sendMetadata(HttpSender httpClient, String apiKey, ChartetoPayload payload) {
+        try {
+            HttpSender.Request.Builder request = httpClient.post(metadataUrl)
+                    .withHeader("X-API-Key", apiKey)
+                    .withContent("application/json", payload.body());
+            if (payload.compressed()) {
+                request.withHeader("Content-Encoding", "gzip");
+            }
+
+            HttpSender.Response response = request.send();
+            sentBytes().increment(payload.body().length);
+            if (response.isSuccessful()) {
+                metadataRequests("success").increment();
+                logger.debug("sent metadata to charteto endpoint {}", uri);
+                return true;
+            }
+            metadataRequests("failure").increment();
+            if (response.code() == 429) {
+                rateLimiter.throttle();
+            }
+            logger.warn("failed to send metadata to charteto endpoint {}: {}", uri, response.body());
+        } catch (Throwable ex) {
+            metadataRequests("failure").increment();
+            logger.warn("failed to send metadata to charteto endpoint " + uri, ex);
+        }
+        metadataVersion = 0;
+        return false;
+    }
+
+    /**
+     * Counts batches skipped between this acknowledgement and the latest earlier one, e.g. batches
+     * that failed or were dropped. Batches still deferred aren't counted until they're given up on, and
+     * a deferred batch acknowledged later doesn't move the cursor back.
+     */
+    private void acknowledged(ChartetoPayload payload, String response) {
+        ChartetoBatchId batchId = payload.batchId();
+        if (batchId == null || !response.contains("\"" + batchId + "\"")) {
+            // only acknowledgements that echo the batch id count
+            return;
+        }
+        long missing = batchId.missingSince(lastAcknowledged);
+        for (ChartetoBatchId late : deferred) {
+            if (lastAcknowledged != null && late.isAfter(lastAcknowledged) && batchId.isAfter(late)) {
+                missing--;
+            }
+        }
+        if (missing > 0) {
+            gaps().increment(missing);
+        }
+        if (lastAcknowledged == null || batchId.isAfter(lastAcknowledged)) {
+            lastAcknowledged = batchId;
+        }
+    }
+
+    // looked up per batch rather than registered up front, so they pick up common tags configured after construction
+    private Counter requests(String outcome) {
+        return Counter.builder("charteto.publish.requests")
+                .description("Metric batches sent to a Charteto endpoint")
+                .tag("endpoint", uri)
+                .tag("outcome", outcome)
+                .register(registry);
+    }
+
+    private Counter metadataRequests(String outcome) {
+        return Counter.builder("charteto.publish.metadata")
+                .description("Series metadata requests sent to a Charteto endpoint")
+                .tag("endpoint", uri)
+                .tag("outcome", outcome)
+                .register(registry);
+    }
+
+    private Counter gaps() {
+        return Counter.builder("charteto.publish.gaps")
+                .description("Batches missing between consecutive acknowledgements from a Charteto endpoint")
+                .baseUnit("batches")
+                .tag("endpoint", uri)
+                .register(registry);
+    }
+
+    private Counter sentBytes() {
+        return Counter.builder("charteto.publish.bytes")
+                .description("Request body bytes sent to a Charteto endpoint")
+                .baseUnit("bytes")
+                .tag("endpoint", uri)
+                .register(registry);
+    }
+
+    enum Outcome {
+        SENT,
+        FAILED,
+        THROTTLED
+    }
+}
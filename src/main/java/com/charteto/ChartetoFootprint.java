@@ -0,0 +1,380 @@
+package com.charteto;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.LongTaskTimer;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Estimates the heap each meter retains: its id and tags, histogram and percentile buffers, the
+ * series cached for publishing and, for gauges, the referent. Estimates are refreshed once per
+ * publish and summed by name prefix, the largest prefixes also being published as gauges. Past
+ * {@link ChartetoConfig#meterMemoryBudget()}, the largest meters that weren't updated since the last
+ * publish are removed from the registry; gauges and the registry's own meters never are.
+ * <p>
+ * The application may still hold an evicted meter. Recording to it brings it back on the next publish,
+ * and registering its id again returns it, so what it recorded meanwhile isn't lost. An evicted meter
+ * the application let go of is left to the garbage collector.
+ */
+class ChartetoFootprint implements MeterBinder {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChartetoFootprint.class);
+
+    /**
+     * Prefixes published as gauges, by name segments and count.
+     */
+    static final int GAUGE_PREFIX_DEPTH = 2;
+    static final int GAUGE_PREFIXES = 10;
+
+    private static final String INTERNAL_PREFIX = "charteto.";
+
+    private final long budget;
+
+    private volatile Map<Meter.Id, Long> estimates = Collections.emptyMap();
+    private volatile long total;
+    private volatile Map<String, Long> topPrefixes = Collections.emptyMap();
+
+    // only touched by the publish that refreshes
+    private Map<Meter.Id, Double> activity = new HashMap<>();
+    private final Map<String, Gauge> prefixGauges = new HashMap<>();
+    private @Nullable MeterRegistry registry;
+    private @Nullable Counter evicted;
+
+    // evicted meters, by id, with their activity when evicted; weak, so the application's handle is all
+    // that keeps them. Guarded by itself, and taken under the registry's lock by takeEvicted
+    private final Map<Meter.Id, Evicted> dormant = new WeakHashMap<>();
+
+    ChartetoFootprint(long budget) {
+        this.budget = budget;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        this.registry = registry;
+        Gauge.builder("charteto.meters.footprint", this, footprint -> footprint.total)
+                .description("Estimated heap retained by meters")
+                .baseUnit("bytes")
+                .strongReference(true)
+                .register(registry);
+        this.evicted = Counter.builder("charteto.meters.evicted")
+                .description("Idle meters removed to stay within the meter memory budget")
+                .register(registry);
+    }
+
+    long total() {
+        return total;
+    }
+
+    /**
+     * Estimates as of the last refresh, summed per prefix of {@code depth} name segments, largest first.
+     */
+    Map<String, Long> byPrefix(int depth, int limit) {
+        Map<String, Long> sums = new HashMap<>();
+        for (Map.Entry<Meter.Id, Long> estimate : estimates.entrySet()) {
+            sums.merge(prefix(estimate.getKey().getName(), depth), estimate.getValue(), Long::sum);
+        }
+        Map<String, Long> top = new LinkedHashMap<>();
+        sums.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .limit(limit)
+                .forEach(e -> top.put(e.getKey(), e.getValue()));
+        return top;
+    }
+
+    static String prefix(String name, int depth) {
+        int end = -1;
+        for (int i = 0; i < depth; i++) {
+            end = name.indexOf('.', end + 1);
+            if (end < 0) {
+                return name;
+            }
+        }
+        return name.substring(0, end);
+    }
+
+    /**
+     * Re-estimates {@code meters}, evicting idle ones if over budget.
+     *
+     * @return the meters left
+     */
+    List<Meter> refresh(MeterRegistry registry, List<Meter> meters, Map<Meter.Id, ChartetoSeries[]> series) {
+        List<Meter> revived = revive(registry);
+        if (!revived.isEmpty()) {
+            meters = new ArrayList<>(meters);
+            meters.addAll(revived);
+        }
+
+        Map<Meter.Id, Long> estimates = new HashMap<>(2 * meters.size());
+        Map<Meter.Id, Double> activity = new HashMap<>(2 * meters.size());
+        // e.g. percentile gauges, which go when their timer is removed
+        Map<Meter.Id, List<Meter.Id>> synthetic = new HashMap<>();
+        List<Meter> idle = new ArrayList<>();
+        long total = 0;
+        for (Meter meter : meters) {
+            long estimate = estimate(meter, series.get(meter.getId()));
+            estimates.put(meter.getId(), estimate);
+            total += estimate;
+
+            Meter.Id parent = meter.getId().syntheticAssociation();
+            if (parent != null) {
+                synthetic.computeIfAbsent(parent, id -> new ArrayList<>()).add(meter.getId());
+            }
+            Double current = activity(meter);
+            if (current != null) {
+                activity.put(meter.getId(), current);
+                if (current.equals(this.activity.get(meter.getId())) && !meter.getId().getName().startsWith(INTERNAL_PREFIX)) {
+                    idle.add(meter);
+                }
+            }
+        }
+
+        List<Meter> remaining = meters;
+        if (budget > 0 && total > budget && !idle.isEmpty()) {
+            Map<Meter.Id, Long> weights = new HashMap<>();
+            for (Meter meter : idle) {
+                long weight = estimates.get(meter.getId());
+                for (Meter.Id child : synthetic.getOrDefault(meter.getId(), Collections.emptyList())) {
+                    weight += estimates.get(child);
+                }
+                weights.put(meter.getId(), weight);
+            }
+            idle.sort((a, b) -> Long.compare(weights.get(b.getId()), weights.get(a.getId())));
+
+            Set<Meter.Id> removed = new HashSet<>();
+            int evictions = 0;
+            for (Iterator<Meter> it = idle.iterator(); it.hasNext() && total > budget; ) {
+                Meter meter = it.next();
+                registry.remove(meter);
+                synchronized (dormant) {
+                    dormant.put(meter.getId(), new Evicted(meter, activity.get(meter.getId())));
+                }
+                logger.warn("evicted idle meter {} to stay within the meter memory budget; it is registered "
+                        + "again once recorded to", meter.getId());
+                evictions++;
+                total -= weights.get(meter.getId());
+                removed.add(meter.getId());
+                removed.addAll(synthetic.getOrDefault(meter.getId(), Collections.emptyList()));
+            }
+            estimates.keySet().removeAll(removed);
+            activity.keySet().removeAll(removed);
+            if (evicted != null) {
+                evicted.increment(evictions);
+            }
+            remaining = new ArrayList<>(meters.size() - removed.size());
+            for (Meter meter : meters) {
+                if (!removed.contains(meter.getId())) {
+                    remaining.add(meter);
+                }
+            }
+        }
+
+        this.estimates = estimates;
+        this.activity = activity;
+        this.total = total;
+        publishTopPrefixes();
+        return remaining;
+    }
+
+    /**
+     * The meter evicted under {@code id}, if the application still holds it, so that registering the id
+     * again returns that meter rather than a new one.
+     */
+    <M extends Meter> @Nullable M takeEvicted(Meter.Id id, Class<M> type) {
+        synchronized (dormant) {
+            Evicted evicted = dormant.get(id);
+            Meter meter = evicted == null ? null : evicted.meter.get();
+            if (meter == null || !type.isInstance(meter) || meter.getId().getType() != id.getType()) {
+                return null;
+            }
+            dormant.remove(id);
+            return type.cast(meter);
+        }
+    }
+
+    /**
+     * Registers again the evicted meters recorded to since.
+     *
+     * @return those registered
+     */
+    private List<Meter> revive(MeterRegistry registry) {
+        List<Meter> updated = new ArrayList<>();
+        synchronized (dormant) {
+            for (Iterator<Evicted> it = dormant.values().iterator(); it.hasNext(); ) {
+                Evicted evicted = it.next();
+                Meter meter = evicted.meter.get();
+                if (meter == null) {
+                    it.remove();
+                    continue;
+                }
+                Double current = activity(meter);
+                if (current == null || !current.equals(evicted.activity)) {
+                    updated.add(meter);
+                }
+            }
+        }
+
+        // not under the lock: registering takes the registry's lock, under which takeEvicted is called
+        List<Meter> revived = new ArrayList<>(updated.size());
+        for (Meter meter : updated) {
+            Meter.Id id = meter.getId();
+            // the registry takes the meter back in place of the one this would create
+            Meter registered = Meter.builder(id.getName(), id.getType(), meter.measure())
+                    .tags(id.getTagsAsIterable())
+                    .description(id.getDescription())
+                    .baseUnit(id.getBaseUnit())
+                    .register(registry);
+            if (registered == meter) {
+                revived.add(meter);
+                continue;
+            }
+            synchronized (dormant) {
+                dormant.remove(id);
+            }
+            logger.warn("evicted meter {} was recorded to but couldn't be registered again; another meter "
+                    + "took its id, or a meter filter changed it", id);
+        }
+        return revived;
+    }
+
+    private void publishTopPrefixes() {
+        MeterRegistry registry = this.registry;
+        if (registry == null) {
+            return;
+        }
+        Map<String, Long> top = byPrefix(GAUGE_PREFIX_DEPTH, GAUGE_PREFIXES);
+        this.topPrefixes = top;
+        for (String prefix : top.keySet()) {
+            prefixGauges.computeIfAbsent(prefix, p -> Gauge.builder("charteto.meters.footprint.prefix", this,
+                            footprint -> footprint.topPrefixes.getOrDefault(p, 0L))
+                    .description("Estimated heap retained by meters whose names start with the prefix")
+                    .baseUnit("bytes")
+                    .tag("prefix", p)
+                    .strongReference(true)
+                    .register(registry));
+        }
+        Set<String> dropped = new HashSet<>(prefixGauges.keySet());
+        dropped.removeAll(top.keySet());
+        for (String prefix : dropped) {
+            registry.remove(prefixGauges.remove(prefix));
+        }
+    }
+
+    /**
+     * What changes when a meter is used, or null for meters that can't be evicted now.
+     */
+    private static @Nullable Double activity(Meter meter) {
+        if (meter instanceof Counter) {
+            return ((Counter) meter).count();
+        }
+        if (meter instanceof Timer) {
+            return (double) ((Timer) meter).count();
+        }
+        if (meter instanceof DistributionSummary) {
+            return (double) ((DistributionSummary) meter).count();
+        }
+        if (meter instanceof FunctionCounter) {
+            return ((FunctionCounter) meter).count();
+        }
+        if (meter instanceof FunctionTimer) {
+            return ((FunctionTimer) meter).count();
+        }
+        if (meter instanceof LongTaskTimer) {
+            // not while tasks are running; idle once none ran through two publishes
+            return ((LongTaskTimer) meter).activeTasks() == 0 ? 0.0 : null;
+        }
+        return null;
+    }
+
+    static long estimate(Meter meter, ChartetoSeries @Nullable [] series) {
+        long bytes = 64 + id(meter.getId());
+        if (meter instanceof ChartetoTimer) {
+            bytes += ((ChartetoTimer) meter).histogram().footprint();
+        }
+        else if (meter instanceof ChartetoDistributionSummary) {
+            bytes += ((ChartetoDistributionSummary) meter).histogram().footprint();
+        }
+        else if (meter instanceof ChartetoLongTaskTimer) {
+            bytes += ((ChartetoLongTaskTimer) meter).footprint();
+        }
+        else if (meter instanceof ChartetoGauge) {
+            bytes += ((ChartetoGauge<?>) meter).footprint();
+        }
+        if (series != null) {
+            bytes += 16 + 8L * series.length;
+            for (ChartetoSeries s : series) {
+                if (s != null) {
+                    bytes += s.footprint();
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private static long id(Meter.Id id) {
+        long bytes = 48 + string(id.getName()) + string(id.getBaseUnit()) + string(id.getDescription());
+        int count = 0;
+        for (Tag tag : id.getTagsAsIterable()) {
+            bytes += 24 + string(tag.getKey()) + string(tag.getValue());
+            count++;
+        }
+        return bytes + 24 + 16 + 8L * count;
+    }
+
+    static long string(@Nullable String s) {
+        // header, hash and coder, then a byte array of Latin-1 characters
+        return s == null ? 0 : 24 + 16 + s.length();
+    }
+
+    /**
+     * Size of an object without following its references, except for the common containers gauges
+     * are built on, whose entries are counted at a fixed size.
+     */
+    static long shallow(@Nullable Object obj) {
+        if (obj == null) {
+            return 0;
+        }
+        if (obj instanceof Collection) {
+            return 48 + 40L * ((Collection<?>) obj).size();
+        }
+        if (obj instanceof Map) {
+            return 64 + 48L * ((Map<?, ?>) obj).size();
+        }
+        if (obj instanceof CharSequence) {
+            return 40 + ((CharSequence) obj).length();
+        }
+        return 24;
+    }
+
+    private static final class Evicted {
+        private final WeakReference<Meter> meter;
+        private final @Nullable Double activity;
+
+        Evicted(Meter meter, @Nullable Double activity) {
+            this.meter = new WeakReference<>(meter);
+            this.activity = activity;
+        }
+    }
+}
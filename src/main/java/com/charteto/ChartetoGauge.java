@@ -0,0 +1,115 @@
+package com.charteto;
+
+import io.micrometer.core.instrument.AbstractMeter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Measurement;
+import io.micrometer.core.instrument.Statistic;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Gauge that remembers its last sampled value. Publishes never call the value function: the
+ * {@link ChartetoGaugeSampler} samples every gauge off the publishing thread before each publish, and
+ * {@link #measure()} reports the latest sample, so a gauge that hangs, however fast it was before,
+ * costs a publish at most the sampling budget. Gauges whose value function runs over the budget are
+ * marked slow, and {@link #value()} then returns the cached value to direct callers too.
+ */
+class ChartetoGauge<T> extends AbstractMeter implements Gauge {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChartetoGauge.class);
+
+    private final @Nullable WeakReference<T> ref;
+    private final ToDoubleFunction<T> valueFunction;
+    private final ChartetoGaugeSampler sampler;
+    private final AtomicBoolean sampling = new AtomicBoolean();
+
+    private volatile double lastValue = Double.NaN;
+    private volatile boolean slow;
+
+    ChartetoGauge(Id id, @Nullable T obj, ToDoubleFunction<T> valueFunction, ChartetoGaugeSampler sampler) {
+        super(id);
+        this.ref = obj == null ? null : new WeakReference<>(obj);
+        this.valueFunction = valueFunction;
+        this.sampler = sampler;
+    }
+
+    @Override
+    public double value() {
+        return slow ? lastValue : sample();
+    }
+
+    /**
+     * The value the sampler last took, what publishes read.
+     */
+    @Override
+    public Iterable<Measurement> measure() {
+        return Collections.singletonList(new Measurement(() -> lastValue, Statistic.VALUE));
+    }
+
+    /**
+     * Approximate heap retained by this gauge and its referent, as far as the referent's size can be
+     * told without walking it, in bytes.
+     */
+    long footprint() {
+        Object obj = ref == null ? null : ref.get();
+        return 64 + (ref == null ? 0 : 32) + ChartetoFootprint.shallow(obj);
+    }
+
+    boolean isSlow() {
+        return slow;
+    }
+
+    void markSlow() {
+        slow = true;
+    }
+
+    /**
+     * Whether the gauge was given an object that has since been garbage collected. Such a gauge can
+     * only ever report NaN.
+     */
+    boolean isReferentCollected() {
+        return ref != null && ref.get() == null;
+    }
+
+    /**
+     * Claims the gauge for an asynchronous refresh; {@code false} if one is already running.
+     */
+    boolean tryStartSampling() {
+        return sampling.compareAndSet(false, true);
+    }
+
+    boolean isSampling() {
+        return sampling.get();
+    }
+
+    void finishSampling() {
+        sampling.set(false);
+    }
+
+    double sample() {
+        T obj = ref == null ? null : ref.get();
+        if (obj == null) {
+            return lastValue = Double.NaN;
+        }
+
+        long start = System.nanoTime();
+        double value;
+        try {
+            value = valueFunction.applyAsDouble(obj);
+        } catch (Throwable ex) {
+            logger.debug("failed to apply the value function for the gauge '{}'", getId().getName(), ex);
+            value = Double.NaN;
+        }
+        long elapsed = System.nanoTime() - start;
+
+        // stays slow until a sample fits the budget again
+        slow = sampler.recordSample(elapsed);
+        return lastValue = value;
+    }
+}
@@ -0,0 +1,197 @@
+package com.charteto;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.util.NamedThreadFactory;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps gauges from stalling a publish. Before each publish every gauge is sampled on a small pool and
+ * the publish waits at most one budget for them all; gauges that don't finish in time are marked slow
+ * and publish their previous value. How fast a gauge was before doesn't matter, so one that starts
+ * hanging is caught the same way. Gauges whose referent has been garbage collected are removed from
+ * the registry.
+ */
+class ChartetoGaugeSampler implements MeterBinder, AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChartetoGaugeSampler.class);
+
+    private final long budgetNanos;
+    private final ThreadPoolExecutor executor;
+
+    private @Nullable Timer samplingTime;
+    private @Nullable Counter timeouts;
+    private @Nullable Counter removed;
+    private volatile int slowGauges;
+
+    ChartetoGaugeSampler(Duration budget, int threads) {
+        this.budgetNanos = budget.toNanos();
+        // no queue: when every thread is stuck on a gauge, further refreshes are skipped rather than piling up
+        this.executor = new ThreadPoolExecutor(0, Math.max(1, threads), 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), new NamedThreadFactory("charteto-gauge-sampler"));
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        this.samplingTime = Timer.builder("charteto.gauges.sampling")
+                .description("Time spent computing gauge values")
+                .register(registry);
+        this.timeouts = Counter.builder("charteto.gauges.timeouts")
+                .description("Gauge samples taken before a publish that didn't finish within the sampling budget")
+                .register(registry);
+        this.removed = Counter.builder("charteto.gauges.removed")
+                .description("Gauges removed because their referent was garbage collected")
+                .register(registry);
+        Gauge.builder("charteto.gauges.slow", this, sampler -> sampler.slowGauges)
+                .description("Gauges whose last sample ran over the sampling budget")
+                .strongReference(true)
+                .register(registry);
+    }
+
+    /**
+     * @return whether a sample that took {@code elapsedNanos} is over budget
+     */
+    boolean recordSample(long elapsedNanos) {
+        Timer samplingTime = this.samplingTime;
+        if (samplingTime != null) {
+            samplingTime.record(elapsedNanos, TimeUnit.NANOSECONDS);
+        }
+        return elapsedNanos > budgetNanos;
+    }
+
+    /**
+     * Prepares gauges for a publish: removes dead gauges and samples the others.
+     */
+    void sample(MeterRegistry registry, List<Meter> meters) {
+        start(registry, meters, System.nanoTime()).await();
+    }
+
+    /**
+     * Removes dead gauges and starts sampling the others, to be waited for until one budget after
+     * {@code startNanos}. Registries that start together wait out one budget between them.
+     */
+    Sampling start(MeterRegistry registry, List<Meter> meters, long startNanos) {
+        List<ChartetoGauge<?>> started = new ArrayList<>();
+        int slow = 0;
+        for (Meter meter : meters) {
+            if (!(meter instanceof ChartetoGauge)) {
+                continue;
+            }
+            ChartetoGauge<?> gauge = (ChartetoGauge<?>) meter;
+            if (gauge.isReferentCollected()) {
+                registry.remove(gauge);
+                increment(removed);
+                continue;
+            }
+            if (gauge.isSlow()) {
+                slow++;
+            }
+            // skipped if still busy with the sample started for an earlier publish
+            if (gauge.tryStartSampling()) {
+                started.add(gauge);
+            }
+        }
+        slowGauges = slow;
+        return new Sampling(started, startNanos + budgetNanos);
+    }
+
+    /**
+     * Gauge samples in progress for one publish.
+     */
+    final class Sampling {
+        private final List<ChartetoGauge<?>> started;
+        private final long deadlineNanos;
+        private final Queue<ChartetoGauge<?>> pending;
+        private final CountDownLatch done;
+        private boolean running;
+
+        private Sampling(List<ChartetoGauge<?>> started, long deadlineNanos) {
+            this.started = started;
+            this.deadlineNanos = deadlineNanos;
+            // a few workers drain one queue, so many gauges don't need a thread each
+            this.pending = new ConcurrentLinkedQueue<>(started);
+            this.done = new CountDownLatch(started.size());
+            int workers = Math.min(started.size(), executor.getMaximumPoolSize());
+            for (int i = 0; i < workers; i++) {
+                try {
+                    executor.execute(() -> {
+                        for (ChartetoGauge<?> gauge; (gauge = pending.poll()) != null; ) {
+                            try {
+                                gauge.sample();
+                            } finally {
+                                gauge.finishSampling();
+                                done.countDown();
+                            }
+                        }
+                    });
+                    running = true;
+                } catch (RejectedExecutionException e) {
+                    // every thread is stuck on a gauge
+                    break;
+                }
+            }
+        }
+
+        /**
+         * Waits for the samples, at most until their budget runs out.
+         */
+        void await() {
+            if (started.isEmpty()) {
+                return;
+            }
+            try {
+                if (running && done.await(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            // gauges still running, or still queued behind one that is, publish their previous value
+            long late = done.getCount();
+            for (ChartetoGauge<?> gauge; (gauge = pending.poll()) != null; ) {
+                gauge.markSlow();
+                gauge.finishSampling();
+            }
+            for (ChartetoGauge<?> gauge : started) {
+                if (gauge.isSampling()) {
+                    gauge.markSlow();
+                }
+            }
+            increment(timeouts, late);
+            logger.debug("{} gauges weren't sampled within the sampling budget", late);
+        }
+    }
+
+    private static void increment(@Nullable Counter counter) {
+        increment(counter, 1);
+    }
+
+    private static void increment(@Nullable Counter counter, double amount) {
+        if (counter != null) {
+            counter.increment(amount);
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
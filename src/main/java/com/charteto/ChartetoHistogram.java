@@ -0,0 +1,208 @@
+package com.charteto;
+
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.distribution.CountAtBucket;
+import io.micrometer.core.instrument.distribution.DistributionStatisticConfig;
+import io.micrometer.core.instrument.distribution.Histogram;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.NavigableSet;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-memory percentile histogram. Values are counted in log-linear buckets: one range per power of
+ * two from {@code 2^10} below the minimum expected value up to the maximum, each split into {@code 2^b}
+ * linear sub-buckets,
+ * where {@code b} follows from the meter's percentile precision (1 digit: 4 bits, 2 digits: 7 bits,
+ * 3 digits: 10 bits). Reported percentiles are bucket midpoints, so they are within
+ * {@code 1 / 2^(b+1)} (3.1%, 0.4%, 0.05%) relative error of the exact value for values in that range,
+ * which leaves room for e.g. sub-millisecond timings under a timer's default 1 ms minimum. Memory is two
+ * generations of {@code (exponents * 2^b + boundaries)} longs, e.g. 6.5 KiB for a timer with the default
+ * 1 ms to 30 s range and one digit of precision.
+ * <p>
+ * All counts live in one flat array holding two generations that swap at step boundaries: recording
+ * goes to the current step while snapshots read the one just completed. Recording is a bucket index
+ * computation and one atomic increment; it never allocates. Exact counts for SLO and histogram bucket
+ * boundaries are kept in the same array when the meter publishes a histogram.
+ * <p>
+ * Percentiles therefore describe the last completed step only. Micrometer's own histograms report
+ * them over a rolling window of {@code bufferLength} times {@code expiry}; here both are ignored, and
+ * a step without recordings reports zero.
+ */
+class ChartetoHistogram implements Histogram {
+
+    private static final int MAX_PRECISION_BITS = 12;
+
+    // no percentile precision needs more than 2^63 of range; this also bounds unlimited maximums
+    private static final int MAX_EXPONENT_RANGE = 64;
+
+    // powers of two counted below the minimum expected value, which is only a hint
+    private static final int UNDERFLOW_EXPONENTS = 10;
+
+    private final Clock clock;
+    private final long stepMillis;
+    private final int precisionBits;
+    private final int minExponent;
+    private final int maxExponent;
+    private final double[] percentiles;
+    private final double[] boundaries;
+
+    // log-linear buckets followed by boundary buckets, once per generation
+    private final int generationLength;
+    private final int logLinearLength;
+    private final AtomicLongArray counts;
+
+    private volatile long currentStep;
+
+    ChartetoHistogram(Clock clock, DistributionStatisticConfig config, Duration step) {
+        this.clock = clock;
+        this.stepMillis = step.toMillis();
+        this.precisionBits = precisionBits(config.getPercentilePrecision());
+        this.percentiles = config.getPercentiles() == null ? new double[0] : config.getPercentiles().clone();
+
+        double min = config.getMinimumExpectedValueAsDouble() == null ? 1.0 : config.getMinimumExpectedValueAsDouble();
+        double max = config.getMaximumExpectedValueAsDouble() == null ? Double.MAX_VALUE : config.getMaximumExpectedValueAsDouble();
+        int expectedMinExponent = Math.getExponent(Math.max(min, Double.MIN_NORMAL));
+        this.minExponent = Math.max(expectedMinExponent - UNDERFLOW_EXPONENTS, Double.MIN_EXPONENT);
+        this.maxExponent = Math.min(Math.getExponent(Math.max(Math.min(max, Double.MAX_VALUE), min)),
+                expectedMinExponent + MAX_EXPONENT_RANGE - 1);
+
+        NavigableSet<Double> buckets = config.getHistogramBuckets(false);
+        this.boundaries = buckets.stream().mapToDouble(Double::doubleValue).toArray();
+
+        this.logLinearLength = percentiles.length == 0 ? 0 : (maxExponent - minExponent + 1) << precisionBits;
+        // the last boundary bucket counts values above the highest boundary
+        this.generationLength = logLinearLength + (boundaries.length == 0 ? 0 : boundaries.length + 1);
+        this.counts = new AtomicLongArray(2 * generationLength);
+        this.currentStep = clock.wallTime() / stepMillis;
+    }
+
+    static int precisionBits(Integer percentilePrecision) {
+        int digits = percentilePrecision == null ? 1 : Math.max(1, percentilePrecision);
+        // smallest b with 2^b >= 10^digits, so the midpoint error 1 / 2^(b+1) is at most half a unit in the last digit
+        int bits = (int) Math.ceil(digits * Math.log(10) / Math.log(2));
+        return Math.min(bits, MAX_PRECISION_BITS);
+    }
+
+    /**
+     * Approximate heap retained by this histogram, in bytes.
+     */
+    long footprint() {
+        return 16 + 8L * counts.length() + 8L * (percentiles.length + boundaries.length) + 64;
+    }
+
+    @Override
+    public void recordLong(long value) {
+        recordDouble(value);
+    }
+
+    @Override
+    public void recordDouble(double value) {
+        int offset = generationOffset(rotate());
+        if (logLinearLength > 0) {
+            counts.incrementAndGet(offset + index(value));
+        }
+        if (boundaries.length > 0) {
+            int b = Arrays.binarySearch(boundaries, value);
+            counts.incrementAndGet(offset + logLinearLength + (b >= 0 ? b : -b - 1));
+        }
+    }
+
+    @Override
+    public HistogramSnapshot takeSnapshot(long count, double total, double max) {
+        int offset = generationOffset(rotate() - 1);
+
+        ValueAtPercentile[] values = new ValueAtPercentile[percentiles.length];
+        if (percentiles.length > 0) {
+            long completed = 0;
+            for (int i = 0; i < logLinearLength; i++) {
+                completed += counts.get(offset + i);
+            }
+            for (int p = 0; p < percentiles.length; p++) {
+                values[p] = new ValueAtPercentile(percentiles[p], valueAt(offset, completed, percentiles[p], max));
+            }
+        }
+
+        CountAtBucket[] histogramCounts = new CountAtBucket[boundaries.length];
+        long cumulative = 0;
+        for (int i = 0; i < boundaries.length; i++) {
+            cumulative += counts.get(offset + logLinearLength + i);
+            histogramCounts[i] = new CountAtBucket(boundaries[i], cumulative);
+        }
+
+        return new HistogramSnapshot(count, total, max, values, histogramCounts, null);
+    }
+
+    private double valueAt(int offset, long completed, double percentile, double max) {
+        if (completed == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile * completed));
+        long seen = 0;
+        for (int i = 0; i < logLinearLength; i++) {
+            seen += counts.get(offset + i);
+            if (seen >= rank) {
+                return Math.min(midpoint(i), max);
+            }
+        }
+        return max;
+    }
+
+    int index(double value) {
+        if (!(value >= Double.MIN_NORMAL)) {
+            // zero, negative and NaN values land in the lowest bucket
+            return 0;
+        }
+        int exponent = Math.getExponent(value);
+        if (exponent < minExponent) {
+            return 0;
+        }
+        if (exponent > maxExponent) {
+            return logLinearLength - 1;
+        }
+        int subBucket = (int) ((Double.doubleToRawLongBits(value) >>> (52 - precisionBits)) & ((1 << precisionBits) - 1));
+        return ((exponent - minExponent) << precisionBits) | subBucket;
+    }
+
+    double midpoint(int index) {
+        int exponent = minExponent + (index >>> precisionBits);
+        int subBucket = index & ((1 << precisionBits) - 1);
+        return Math.scalb(1.0 + (subBucket + 0.5) / (1 << precisionBits), exponent);
+    }
+
+    private int generationOffset(long step) {
+        return (int) (step & 1) * generationLength;
+    }
+
+    /**
+     * Moves recording to the step the clock is in, clearing whatever that generation held two (or more)
+     * steps ago, and returns that step.
+     */
+    private long rotate() {
+        long step = clock.wallTime() / stepMillis;
+        if (step != currentStep) {
+            synchronized (this) {
+                long last = currentStep;
+                if (step > last) {
+                    clear(step);
+                    if (step > last + 1) {
+                        // nothing was recorded during the previous step either
+                        clear(step - 1);
+                    }
+                    currentStep = step;
+                }
+            }
+        }
+        return step;
+    }
+
+    private void clear(long step) {
+        int offset = generationOffset(step);
+        for (int i = 0; i < generationLength; i++) {
+            counts.set(offset + i, 0);
+        }
+    }
+}
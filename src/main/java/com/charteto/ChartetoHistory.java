@@ -0,0 +1,315 @@
+package com.charteto;
+
+import io.micrometer.core.instrument.util.StringEscapeUtils;
+import org.jspecify.annotations.Nullable;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The last {@link ChartetoConfig#historyRetention()} of what a registry published, kept in memory so
+ * recent values can be inspected on the host, e.g. from an admin endpoint while Charteto is
+ * unreachable. Every published point is recorded, whether or not sending it succeeded.
+ * <p>
+ * Series are stored in {@link ChartetoHistoryChunk compressed chunks}. Chunks entirely older than the
+ * retention are dropped, and when the store grows past {@link ChartetoConfig#historyMaxBytes()} the
+ * oldest completed chunks go first, whatever their series; beyond that, new series aren't recorded.
+ * <p>
+ * Names and tags are matched and returned as published, i.e. after the naming convention.
+ */
+public final class ChartetoHistory {
+
+    // maps, entries and the series itself
+    private static final int SERIES_OVERHEAD = 256;
+
+    private final long stepMillis;
+    private final long retentionMillis;
+    private final long maxBytes;
+
+    // series are cached per meter, so identity finds a series without building its key
+    private final Map<ChartetoSeries, Stored> byIdentity = new IdentityHashMap<>();
+    private final Map<String, Stored> byKey = new HashMap<>();
+    // completed chunks, oldest first; entries whose chunk was already dropped are skipped
+    private final Deque<Stored> completed = new ArrayDeque<>();
+    private long bytes;
+    private long lastSweep;
+
+    ChartetoHistory(Duration step, Duration retention, long maxBytes) {
+        this.stepMillis = step.toMillis();
+        this.retentionMillis = retention.toMillis();
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Records a point published at {@code timestamp}, which is aligned to the step. A second point in
+     * the same step, e.g. from the final publish on close, is ignored.
+     */
+    synchronized void record(ChartetoSeries series, long timestamp, double value) {
+        if (timestamp > lastSweep) {
+            lastSweep = timestamp;
+            expire(timestamp - retentionMillis);
+        }
+
+        Stored stored = byIdentity.get(series);
+        if (stored == null) {
+            String key = key(series);
+            stored = byKey.get(key);
+            if (stored == null) {
+                if (bytes + SERIES_OVERHEAD > maxBytes) {
+                    return;
+                }
+                stored = new Stored(series, key);
+                byKey.put(key, stored);
+                bytes += SERIES_OVERHEAD;
+            }
+            byIdentity.put(series, stored);
+        }
+
+        long time = timestamp / stepMillis;
+        if (stored.open == null) {
+            if (!stored.chunks.isEmpty() && time <= stored.chunks.peekLast().lastTime()) {
+                return;
+            }
+            stored.open = new ChartetoHistoryChunk();
+            bytes += stored.open.sizeInBytes();
+        }
+        else if (stored.open.count() > 0 && time <= stored.open.lastTime()) {
+            return;
+        }
+
+        ChartetoHistoryChunk open = stored.open;
+        bytes -= open.sizeInBytes();
+        open.append(time, value);
+        if (open.isFull()) {
+            open.trim();
+            stored.chunks.addLast(open);
+            stored.open = null;
+            completed.addLast(stored);
+        }
+        bytes += open.sizeInBytes();
+
+        while (bytes > maxBytes && !completed.isEmpty()) {
+            Stored oldest = completed.removeFirst();
+            if (!oldest.chunks.isEmpty()) {
+                bytes -= oldest.chunks.removeFirst().sizeInBytes();
+                removeIfEmpty(oldest);
+            }
+        }
+    }
+
+    private void expire(long cutoffMillis) {
+        long cutoff = Math.floorDiv(cutoffMillis, stepMillis);
+        for (Iterator<Stored> it = byKey.values().iterator(); it.hasNext(); ) {
+            Stored stored = it.next();
+            while (!stored.chunks.isEmpty() && stored.chunks.peekFirst().lastTime() < cutoff) {
+                bytes -= stored.chunks.removeFirst().sizeInBytes();
+            }
+            if (stored.open != null && stored.open.lastTime() < cutoff) {
+                bytes -= stored.open.sizeInBytes();
+                stored.open = null;
+            }
+            if (stored.isEmpty()) {
+                it.remove();
+                bytes -= SERIES_OVERHEAD;
+            }
+        }
+        byIdentity.values().removeIf(Stored::isEmpty);
+        // completed entries of dropped chunks are skipped when evicting, so this only bounds the deque
+        completed.removeIf(Stored::isEmpty);
+    }
+
+    private void removeIfEmpty(Stored stored) {
+        if (stored.isEmpty() && byKey.remove(stored.key, stored)) {
+            bytes -= SERIES_OVERHEAD;
+            byIdentity.values().removeIf(s -> s == stored);
+        }
+    }
+
+    /**
+     * Approximate heap used by recorded points.
+     */
+    public synchronized long sizeInBytes() {
+        return bytes;
+    }
+
+    /**
+     * Points between {@code from} and {@code to}, inclusive, of the series named {@code name} with at
+     * least {@code tags}.
+     */
+    public synchronized List<Series> range(String name, Map<String, String> tags, Instant from, Instant to) {
+        String escapedName = StringEscapeUtils.escapeJson(name);
+        Map<String, String> escapedTags = new LinkedHashMap<>();
+        tags.forEach((key, value) -> escapedTags.put(StringEscapeUtils.escapeJson(key), StringEscapeUtils.escapeJson(value)));
+
+        long fromMillis = from.toEpochMilli();
+        long toMillis = to.toEpochMilli();
+        List<Series> result = new ArrayList<>();
+        for (Stored stored : byKey.values()) {
+            if (!stored.series.name().equals(escapedName) || !hasTags(stored.series, escapedTags)) {
+                continue;
+            }
+            long[] timestamps = new long[16];
+            double[] values = new double[16];
+            int n = 0;
+            for (ChartetoHistoryChunk chunk : stored.chunks()) {
+                if (chunk.lastTime() * stepMillis < fromMillis || chunk.firstTime() * stepMillis > toMillis) {
+                    continue;
+                }
+                for (ChartetoHistoryChunk.Reader reader = chunk.reader(); reader.next(); ) {
+                    long timestamp = reader.time() * stepMillis;
+                    if (timestamp < fromMillis || timestamp > toMillis) {
+                        continue;
+                    }
+                    if (n == timestamps.length) {
+                        timestamps = Arrays.copyOf(timestamps, 2 * n);
+                        values = Arrays.copyOf(values, 2 * n);
+                    }
+                    timestamps[n] = timestamp;
+                    values[n++] = reader.value();
+                }
+            }
+            if (n > 0) {
+                result.add(new Series(stored.series, Arrays.copyOf(timestamps, n), Arrays.copyOf(values, n)));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Per-second increase between consecutive points of cumulative series such as counters, stamped
+     * with the later point. A decrease is taken as a reset to zero.
+     */
+    public List<Series> rate(String name, Map<String, String> tags, Instant from, Instant to) {
+        List<Series> rates = new ArrayList<>();
+        for (Series series : range(name, tags, from, to)) {
+            int n = series.timestamps.length - 1;
+            if (n < 1) {
+                continue;
+            }
+            long[] timestamps = new long[n];
+            double[] values = new double[n];
+            for (int i = 0; i < n; i++) {
+                double increase = series.values[i + 1] - series.values[i];
+                timestamps[i] = series.timestamps[i + 1];
+                values[i] = (increase < 0 ? series.values[i + 1] : increase)
+                        / ((series.timestamps[i + 1] - series.timestamps[i]) / 1000.0);
+            }
+            rates.add(new Series(series.series, timestamps, values));
+        }
+        return rates;
+    }
+
+    /**
+     * The {@code k} series with the highest latest value, e.g. of {@link #range} or {@link #rate}.
+     * Series whose latest value is NaN come last.
+     */
+    public static List<Series> topK(List<Series> series, int k) {
+        List<Series> sorted = new ArrayList<>(series);
+        sorted.sort(Comparator.comparingDouble(Series::latest).reversed());
+        return sorted.subList(0, Math.min(k, sorted.size()));
+    }
+
+    private static boolean hasTags(ChartetoSeries series, Map<String, String> tags) {
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            if (!tag.getValue().equals(series.tag(tag.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String key(ChartetoSeries series) {
+        StringBuilder key = new StringBuilder(series.name()).append('\0').append(series.type());
+        for (int i = 0; i < series.tagCount(); i++) {
+            key.append('\0').append(series.tagKey(i)).append('=').append(series.tagValue(i));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Recorded points of one series, oldest first.
+     */
+    public static final class Series {
+        private final ChartetoSeries series;
+        private final long[] timestamps;
+        private final double[] values;
+
+        Series(ChartetoSeries series, long[] timestamps, double[] values) {
+            this.series = series;
+            this.timestamps = timestamps;
+            this.values = values;
+        }
+
+        public String name() {
+            return series.name();
+        }
+
+        /**
+         * The statistic published, e.g. {@code COUNT} or {@code GAUGE}.
+         */
+        public String type() {
+            return series.type();
+        }
+
+        public Map<String, String> tags() {
+            Map<String, String> tags = new LinkedHashMap<>();
+            for (int i = 0; i < series.tagCount(); i++) {
+                tags.put(series.tagKey(i), series.tagValue(i));
+            }
+            return Collections.unmodifiableMap(tags);
+        }
+
+        /**
+         * Epoch milliseconds, aligned to the step.
+         */
+        public long[] timestamps() {
+            return timestamps.clone();
+        }
+
+        public double[] values() {
+            return values.clone();
+        }
+
+        private double latest() {
+            // NaN sorts above everything in comparingDouble; reversed, it would come first
+            double latest = values[values.length - 1];
+            return Double.isNaN(latest) ? Double.NEGATIVE_INFINITY : latest;
+        }
+    }
+
+    private static final class Stored {
+        private final ChartetoSeries series;
+        private final String key;
+        private final Deque<ChartetoHistoryChunk> chunks = new ArrayDeque<>();
+        private @Nullable ChartetoHistoryChunk open;
+
+        Stored(ChartetoSeries series, String key) {
+            this.series = series;
+            this.key = key;
+        }
+
+        boolean isEmpty() {
+            return chunks.isEmpty() && open == null;
+        }
+
+        List<ChartetoHistoryChunk> chunks() {
+            List<ChartetoHistoryChunk> all = new ArrayList<>(chunks);
+            if (open != null) {
+                all.add(open);
+            }
+            return all;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.charteto;
+
+import java.util.Arrays;
+
+/**
+ * Up to {@link #MAX_POINTS} points of one series, compressed as in Facebook's Gorilla: timestamps as
+ * delta-of-delta, values XORed with the previous value. Points published every step with a steady
+ * value take two bits; slowly changing values typically well under two bytes.
+ * <pre>
+ * first point := time (64 bits) value (64 bits)
+ * time        := '0' (same delta) | '10' dod (7 bits) | '110' dod (9 bits) | '1110' dod (12 bits) | '1111' dod (64 bits)
+ * value       := '0' (unchanged) | '10' xor bits in the previous window | '11' leading zeros (5 bits) length - 1 (6 bits) xor bits
+ * </pre>
+ * Times are in steps, so a regular publish has a delta-of-delta of zero. Not thread-safe.
+ */
+final class ChartetoHistoryChunk {
+
+    static final int MAX_POINTS = 60;
+
+    private long[] bits = new long[4];
+    private int bitLength;
+    private int count;
+
+    private long firstTime;
+    private long lastTime;
+    private long lastDelta;
+    private long lastValueBits;
+    private int lastLeading = -1;
+    private int lastTrailing;
+
+    int count() {
+        return count;
+    }
+
+    boolean isFull() {
+        return count == MAX_POINTS;
+    }
+
+    long firstTime() {
+        return firstTime;
+    }
+
+    long lastTime() {
+        return lastTime;
+    }
+
+    /**
+     * Approximate heap used, including the object headers.
+     */
+    int sizeInBytes() {
+        return 64 + 16 + 8 * bits.length;
+    }
+
+    /**
+     * @param time in steps, later than the last point's
+     */
+    void append(long time, double value) {
+        long valueBits = Double.doubleToRawLongBits(value);
+        if (count == 0) {
+            firstTime = time;
+            write(time, 64);
+            write(valueBits, 64);
+        }
+        else {
+            long delta = time - lastTime;
+            writeDeltaOfDelta(delta - lastDelta);
+            lastDelta = delta;
+            writeXor(valueBits ^ lastValueBits);
+        }
+        lastTime = time;
+        lastValueBits = valueBits;
+        count++;
+    }
+
+    /**
+     * Releases the spare capacity of a chunk that won't be appended to anymore.
+     */
+    void trim() {
+        bits = Arrays.copyOf(bits, (bitLength + 63) >>> 6);
+    }
+
+    private void writeDeltaOfDelta(long dod) {
+        if (dod == 0) {
+            write(0, 1);
+        }
+        else if (fits(dod, 7)) {
+            write(0b10, 2);
+            write(dod, 7);
+        }
+        else if (fits(dod, 9)) {
+            write(0b110, 3);
+            write(dod, 9);
+        }
+        else if (fits(dod, 12)) {
+            write(0b1110, 4);
+            write(dod, 12);
+        }
+        else {
+            write(0b1111, 4);
+            write(dod, 64);
+        }
+    }
+
+    private static boolean fits(long value, int bits) {
+        return value >= -(1L << (bits - 1)) && value < (1L << (bits - 1));
+    }
+
+    private void writeXor(long xor) {
+        if (xor == 0) {
+            write(0, 1);
+            return;
+        }
+        int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+        int trailing = Long.numberOfTrailingZeros(xor);
+        if (lastLeading >= 0 && leading >= lastLeading && trailing >= lastTrailing) {
+            write(0b10, 2);
+            write(xor >>> lastTrailing, 64 - lastLeading - lastTrailing);
+            return;
+        }
+        int significant = 64 - leading - trailing;
+        write(0b11, 2);
+        write(leading, 5);
+        write(significant - 1, 6);
+        write(xor >>> trailing, significant);
+        lastLeading = leading;
+        lastTrailing = trailing;
+    }
+
+    /**
+     * Appends the low {@code n} bits of {@code value}, most significant first.
+     */
+    private void write(long value, int n) {
+        if (bitLength + n > 64 * bits.length) {
+            bits = Arrays.copyOf(bits, 2 * bits.length);
+        }
+        long v = value & mask(n);
+        int index = bitLength >>> 6;
+        int free = 64 - (bitLength & 63);
+        if (n <= free) {
+            bits[index] |= v << (free - n);
+        }
+        else {
+            bits[index] |= v >>> (n - free);
+            bits[index + 1] |= v << (64 - (n - free));
+        }
+        bitLength += n;
+    }
+
+    private static long mask(int n) {
+        return n == 64 ? -1L : (1L << n) - 1;
+    }
+
+    /**
+     * Reads the points appended so far.
+     */
+    Reader reader() {
+        return new Reader();
+    }
+
+    final class Reader {
+        private final int end = count;
+        private int read;
+        private int position;
+        private long time;
+        private long delta;
+        private long valueBits;
+        private int leading = -1;
+        private int trailing;
+
+        boolean next() {
+            if (read == end) {
+                return false;
+            }
+            if (read == 0) {
+                time = read(64);
+                valueBits = read(64);
+            }
+            else {
+                delta += readDeltaOfDelta();
+                time += delta;
+                readXor();
+            }
+            read++;
+            return true;
+        }
+
+        long time() {
+            return time;
+        }
+
+        double value() {
+            return Double.longBitsToDouble(valueBits);
+        }
+
+        private long readDeltaOfDelta() {
+            if (read(1) == 0) {
+                return 0;
+            }
+            if (read(1) == 0) {
+                return signed(read(7), 7);
+            }
+            if (read(1) == 0) {
+                return signed(read(9), 9);
+            }
+            if (read(1) == 0) {
+                return signed(read(12), 12);
+            }
+            return read(64);
+        }
+
+        private long signed(long value, int bits) {
+            return (value << (64 - bits)) >> (64 - bits);
+        }
+
+        private void readXor() {
+            if (read(1) == 0) {
+                return;
+            }
+            if (read(1) == 1) {
+                leading = (int) read(5);
+                int significant = (int) read(6) + 1;
+                trailing = 64 - leading - significant;
+            }
+            valueBits ^= read(64 - leading - trailing) << trailing;
+        }
+
+        private long read(int n) {
+            int index = position >>> 6;
+            int free = 64 - (position & 63);
+            long v;
+            if (n <= free) {
+                v = (bits[index] >>> (free - n)) & mask(n);
+            }
+            else {
+                v = ((bits[index] & mask(free)) << (n - free)) | (bits[index + 1] >>> (64 - (n - free)));
+            }
+            position += n;
+            return v;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package com.charteto;
+
+import io.micrometer.core.instrument.AbstractMeter;
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.LongTaskTimer;
+import io.micrometer.core.instrument.distribution.CountAtBucket;
+import io.micrometer.core.instrument.distribution.DistributionStatisticConfig;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import io.micrometer.core.instrument.util.TimeUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Long task timer for many concurrent tasks. Instead of a list of active tasks it keeps, per
+ * {@link #BUCKET_NANOS} of start time, how many tasks started then are still running and the sum of
+ * their start offsets into the bucket. Starting and stopping a task is one or two atomic adds on a
+ * stripe picked by the starting thread; duration and active count are exact, while max, percentiles
+ * and histogram counts are resolved to the bucket, reading {@code O(buckets with active tasks)}.
+ * <p>
+ * A task stops on the stripe it started on, so no stripe ever reads below its running tasks and a
+ * bucket that reads empty really is; such buckets are retired, and a start that races the retirement
+ * moves to a fresh bucket.
+ */
+class ChartetoLongTaskTimer extends AbstractMeter implements LongTaskTimer {
+
+    /**
+     * Start-time resolution, and so the most {@link #max(TimeUnit)} can overstate the longest task.
+     */
+    static final long BUCKET_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final int STRIPES = Math.min(16, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+
+    // a stripe's active count and offset sum share a cache line with nothing else
+    private static final int STRIDE = 8;
+
+    private static final AtomicIntegerFieldUpdater<ActiveSample> STOPPED =
+            AtomicIntegerFieldUpdater.newUpdater(ActiveSample.class, "stopped");
+
+    private final Clock clock;
+    private final TimeUnit baseTimeUnit;
+    private final double[] percentiles;
+    private final double[] boundaries;
+
+    private final ConcurrentSkipListMap<Long, Bucket> buckets = new ConcurrentSkipListMap<>();
+    private volatile Bucket current = new Bucket(Long.MIN_VALUE);
+
+    ChartetoLongTaskTimer(Id id, Clock clock, TimeUnit baseTimeUnit, DistributionStatisticConfig distributionStatisticConfig) {
+        super(id);
+        this.clock = clock;
+        this.baseTimeUnit = baseTimeUnit;
+        this.percentiles = distributionStatisticConfig.getPercentiles() == null
+                ? new double[0] : distributionStatisticConfig.getPercentiles().clone();
+        NavigableSet<Double> histogramBuckets = distributionStatisticConfig.getHistogramBuckets(false);
+        this.boundaries = histogramBuckets.stream().mapToDouble(Double::doubleValue).toArray();
+    }
+
+    @Override
+    public Sample start() {
+        long start = clock.monotonicTime();
+        long epoch = Math.floorDiv(start, BUCKET_NANOS);
+        int stripe = (int) (Thread.currentThread().getId() & (STRIPES - 1)) * STRIDE;
+        long offset = start - epoch * BUCKET_NANOS;
+        Bucket bucket = current;
+        if (bucket.epoch != epoch) {
+            bucket = bucket(epoch);
+        }
+        while (true) {
+            bucket.add(stripe, 1, offset);
+            if (!bucket.retired) {
+                return new ActiveSample(bucket, stripe, start, offset);
+            }
+            // being retired by a snapshot that may not have seen this task; it removes the bucket or keeps it
+            bucket.add(stripe, -1, -offset);
+            bucket = bucket(epoch);
+        }
+    }
+
+    private Bucket bucket(long epoch) {
+        Bucket bucket = buckets.computeIfAbsent(epoch, Bucket::new);
+        if (bucket.epoch > current.epoch) {
+            current = bucket;
+        }
+        return bucket;
+    }
+
+    @Override
+    public double duration(TimeUnit unit) {
+        long now = clock.monotonicTime();
+        double nanos = 0;
+        for (Active active : active(now)) {
+            nanos += active.count * active.meanNanos;
+        }
+        return TimeUtils.nanosToUnit(nanos, unit);
+    }
+
+    @Override
+    public int activeTasks() {
+        long count = 0;
+        for (Active active : active(clock.monotonicTime())) {
+            count += active.count;
+        }
+        return (int) count;
+    }
+
+    @Override
+    public double max(TimeUnit unit) {
+        List<Active> active = active(clock.monotonicTime());
+        return active.isEmpty() ? 0 : TimeUtils.nanosToUnit(active.get(active.size() - 1).maxNanos, unit);
+    }
+
+    @Override
+    public TimeUnit baseTimeUnit() {
+        return baseTimeUnit;
+    }
+
+    /**
+     * Buckets are the configured SLOs and histogram boundaries, in nanoseconds, each counting the active
+     * tasks that have run for at most that long, as {@code HistogramGauges} expects.
+     */
+    @Override
+    public HistogramSnapshot takeSnapshot() {
+        long now = clock.monotonicTime();
+        List<Active> active = active(now);
+        long count = 0;
+        double total = 0;
+        for (Active a : active) {
+            count += a.count;
+            total += a.count * a.meanNanos;
+        }
+        double max = active.isEmpty() ? 0 : active.get(active.size() - 1).maxNanos;
+
+        ValueAtPercentile[] values = new ValueAtPercentile[percentiles.length];
+        for (int i = 0; i < percentiles.length; i++) {
+            values[i] = new ValueAtPercentile(percentiles[i], valueAt(active, Math.ceil(percentiles[i] * count)));
+        }
+
+        CountAtBucket[] counts = new CountAtBucket[boundaries.length];
+        long cumulative = 0;
+        int next = 0;
+        for (int i = 0; i < boundaries.length; i++) {
+            while (next < active.size() && active.get(next).meanNanos <= boundaries[i]) {
+                cumulative += active.get(next++).count;
+            }
+            counts[i] = new CountAtBucket(boundaries[i], cumulative);
+        }
+
+        return new HistogramSnapshot(count, total, max, values, counts, (printStream, scale) -> {
+        });
+    }
+
+    private static double valueAt(List<Active> active, double rank) {
+        long cumulative = 0;
+        for (Active a : active) {
+            cumulative += a.count;
+            if (cumulative >= rank) {
+                return a.meanNanos;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Buckets with running tasks, youngest first, retiring empty ones along the way.
+     */
+    private List<Active> active(long now) {
+        List<Active> active = new ArrayList<>();
+        for (Map.Entry<Long, Bucket> entry : buckets.descendingMap().entrySet()) {
+            Bucket bucket = entry.getValue();
+            long count = bucket.count();
+            if (count == 0 && bucket != current) {
+                bucket.retired = true;
+                // a start that added before seeing the flag is visible now
+                count = bucket.count();
+                if (count == 0) {
+                    buckets.remove(entry.getKey(), bucket);
+                    continue;
+                }
+                bucket.retired = false;
+            }
+            if (count > 0) {
+                long bucketStart = bucket.epoch * BUCKET_NANOS;
+                active.add(new Active(count,
+                        Math.max(0, now - bucketStart - (double) bucket.offsets() / count),
+                        Math.max(0, now - bucketStart)));
+            }
+        }
+        return active;
+    }
+
+    /**
+     * Approximate heap retained by this timer, in bytes; active tasks cost nothing beyond their buckets.
+     */
+    long footprint() {
+        // a skip list node and a bucket with its stripes per bucket
+        return 64 + 8L * (percentiles.length + boundaries.length)
+                + buckets.size() * (48 + 32 + 16 + 8L * STRIPES * STRIDE);
+    }
+
+    /**
+     * Number of buckets currently tracked, including the one starts go to.
+     */
+    int bucketCount() {
+        return buckets.size();
+    }
+
+    private static final class Bucket {
+        private final long epoch;
+        // per stripe: active tasks, then the sum of their start offsets into the bucket
+        private final AtomicLongArray stripes = new AtomicLongArray(STRIPES * STRIDE);
+        private volatile boolean retired;
+
+        Bucket(long epoch) {
+            this.epoch = epoch;
+        }
+
+        void add(int stripe, long tasks, long offsets) {
+            stripes.addAndGet(stripe + 1, offsets);
+            // the count goes last and is read first, so a counted task's offset is always included
+            stripes.addAndGet(stripe, tasks);
+        }
+
+        long count() {
+            long count = 0;
+            for (int i = 0; i < STRIPES * STRIDE; i += STRIDE) {
+                count += stripes.get(i);
+            }
+            return count;
+        }
+
+        long offsets() {
+            long offsets = 0;
+            for (int i = 1; i < STRIPES * STRIDE; i += STRIDE) {
+                offsets += stripes.get(i);
+            }
+            return offsets;
+        }
+    }
+
+    private static final class Active {
+        private final long count;
+        private final double meanNanos;
+        private final double maxNanos;
+
+        Active(long count, double meanNanos, double maxNanos) {
+            this.count = count;
+            this.meanNanos = meanNanos;
+            this.maxNanos = maxNanos;
+        }
+    }
+
+    private final class ActiveSample extends Sample {
+        private final Bucket bucket;
+        private final int stripe;
+        private final long start;
+        private final long offset;
+        // not private, for the field updater
+        volatile int stopped;
+
+        ActiveSample(Bucket bucket, int stripe, long start, long offset) {
+            this.bucket = bucket;
+            this.stripe = stripe;
+            this.start = start;
+            this.offset = offset;
+        }
+
+        @Override
+        public long stop() {
+            long duration = clock.monotonicTime() - start;
+            if (STOPPED.compareAndSet(this, 0, 1)) {
+                bucket.add(stripe, -1, -offset);
+            }
+            return duration;
+        }
+
+        @Override
+        public double duration(TimeUnit unit) {
+            return stopped == 1 ? -1 : TimeUtils.nanosToUnit(clock.monotonicTime() - start, unit);
+        }
+    }
+}
@@ -10,7 +10,6 @@ import io.micrometer.core.instrument.LongTaskTimer;
 import io.micrometer.core.instrument.Measurement;
 import io.micrometer.core.instrument.Meter;
 import io.micrometer.core.instrument.Statistic;
-import io.micrometer.core.instrument.Tag;
 import io.micrometer.core.instrument.Timer;
 import io.micrometer.core.instrument.cumulative.CumulativeCounter;
 import io.micrometer.core.instrument.cumulative.CumulativeDistributionSummary;
@@ -20,28 +19,43 @@ import io.micrometer.core.instrument.cumulative.CumulativeTimer;
 import io.micrometer.core.instrument.distribution.DistributionStatisticConfig;
 import io.micrometer.core.instrument.distribution.HistogramGauges;
 import io.micrometer.core.instrument.distribution.pause.PauseDetector;
-import io.micrometer.core.instrument.internal.DefaultGauge;
-import io.micrometer.core.instrument.internal.DefaultLongTaskTimer;
 import io.micrometer.core.instrument.internal.DefaultMeter;
 import io.micrometer.core.instrument.push.PushMeterRegistry;
 import io.micrometer.core.instrument.util.MeterPartition;
 import io.micrometer.core.instrument.util.NamedThreadFactory;
-import io.micrometer.core.instrument.util.StringEscapeUtils;
+import io.micrometer.core.instrument.util.TimeUtils;
 import io.micrometer.core.ipc.http.HttpSender;
 import io.micrometer.core.ipc.http.HttpUrlConnectionSender;
 import org.jspecify.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.UUID;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 import java.util.function.ToDoubleFunction;
 import java.util.function.ToLongFunction;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
-import java.util.stream.StreamSupport;
 
 public class ChartetoMeterRegistry extends PushMeterRegistry {
 
@@ -52,105 +66,514 @@ public class ChartetoMeterRegistry extends PushMeterRegistry {
 
     private final ChartetoConfig config;
     private final HttpSender httpClient;
+    private final ChartetoRouter router;
+    private final ChartetoGaugeSampler gaugeSampler;
+    private final ChartetoFootprint footprint;
+    private final @Nullable String hostTag;
+
+    // naming convention output per meter and statistic, so publishes don't recompute it
+    private final Map<Meter.Id, ChartetoSeries[]> seriesCache = new ConcurrentHashMap<>();
+    private final Predicate<String> priorityMeters;
+
+    // batches that didn't fit the last step's rate budget; only touched by publish()
+    private final Deque<Delivery> deferred = new ArrayDeque<>();
+    private final AtomicBoolean internalMetersBound = new AtomicBoolean();
+    // gauge samples started ahead of the publish that collects them
+    private final AtomicReference<ChartetoGaugeSampler.Sampling> sampling = new AtomicReference<>();
+
+    // batch ids are prefix-cycle-sequence; the cycle is only touched by publish()
+    private final String batchIdPrefix = ChartetoBatchId.newPrefix();
+    private long publishCycle;
+
+    private final Lock publishLock = new ReentrantLock();
+    private volatile boolean closing;
+    private @Nullable ScheduledExecutorService scheduledPublisher;
+    private final @Nullable ChartetoSharedPublisher sharedPublisher;
+    private final @Nullable ChartetoAgentSender agentSender;
+    private final @Nullable ChartetoHistory history;
+    private final @Nullable ChartetoDescriptors descriptors;
 
     public ChartetoMeterRegistry(ChartetoConfig config, Clock clock) {
-        this(config, clock, DEFAULT_THREAD_FACTORY, new HttpUrlConnectionSender(config.connectTimeout(), config.readTimeout()));
+        this(config, clock, DEFAULT_THREAD_FACTORY, new HttpUrlConnectionSender(config.connectTimeout(), config.readTimeout()), null);
     }
 
-    private ChartetoMeterRegistry(ChartetoConfig config, Clock clock, ThreadFactory threadFactory, HttpSender httpClient) {
+    private ChartetoMeterRegistry(ChartetoConfig config, Clock clock, ThreadFactory threadFactory, HttpSender httpClient,
+                                  @Nullable ChartetoSharedPublisher sharedPublisher) {
         super(config, clock);
+        this.sharedPublisher = sharedPublisher;
         this.config().namingConvention(new ChartetoNamingConvention());
+        this.config().onMeterRemoved(meter -> seriesCache.remove(meter.getId()));
         this.config = config;
         this.httpClient = httpClient;
+        this.gaugeSampler = new ChartetoGaugeSampler(config.gaugeSamplingBudget(), config.gaugeSamplingThreads());
+        this.footprint = new ChartetoFootprint(config.meterMemoryBudget());
+        this.hostTag = config.hostTag() == null ? null : config().namingConvention().tagKey(config.hostTag());
+        this.router = new ChartetoRouter(config.uris().stream()
+                .map(uri -> new ChartetoEndpoint(uri, this,
+                        new ChartetoRateLimiter(clock, config.maxRequestsPerSecond(), config.maxBytesPerSecond())))
+                .collect(Collectors.toList()), config.routing());
+        this.priorityMeters = namePatterns(config.priorityMeters());
+        this.agentSender = config.transport() == ChartetoTransport.AGENT
+                ? new ChartetoAgentSender(config.agentAddress(), this)
+                : null;
+        this.history = config.historyRetention().isZero()
+                ? null
+                : new ChartetoHistory(config.step(), config.historyRetention(), config.historyMaxBytes());
+        this.descriptors = config.metadataSync() && agentSender == null ? new ChartetoDescriptors(batchIdPrefix) : null;
         this.start(threadFactory);
     }
 
+    public static Builder builder(ChartetoConfig config) {
+        return new Builder(config);
+    }
+
+    /**
+     * Estimated heap retained by this registry's meters as of the last publish, in bytes.
+     */
+    public long footprint() {
+        return footprint.total();
+    }
+
+    /**
+     * Estimated heap retained by meters as of the last publish, summed by the first {@code depth}
+     * segments of their names, e.g. {@code http.server} for depth 2, for the {@code limit} largest
+     * prefixes, largest first.
+     */
+    public Map<String, Long> footprintByPrefix(int depth, int limit) {
+        return footprint.byPrefix(depth, limit);
+    }
+
+    /**
+     * Recently published values, or {@code null} unless {@link ChartetoConfig#historyRetention()} is set.
+     */
+    public @Nullable ChartetoHistory history() {
+        return history;
+    }
+
+    /**
+     * Schedules publishing at this registry's offset into each step rather than at the random offset
+     * {@link PushMeterRegistry} picks, which the base class doesn't let subclasses replace. A registry
+     * built with a {@link ChartetoSharedPublisher} attaches to it instead.
+     */
     @Override
     public void start(ThreadFactory threadFactory) {
-        if (this.config.enabled() && this.config.apiKey() == null) {
+        if (this.config.enabled() && agentSender == null && this.config.apiKey() == null) {
             this.logger.info("An api key must be configured in order for metric information to be sent to Charteto.");
         }
-        super.start(threadFactory);
+
+        stop();
+        if (config.enabled() && sharedPublisher != null) {
+            sharedPublisher.attach(this, config);
+        }
+        else if (config.enabled()) {
+            long stepMillis = config.step().toMillis();
+            long offset = publishOffset(publishOffsetKey(), stepMillis);
+            logger.info("publishing metrics for {} every {}, {}ms into the step", getClass().getSimpleName(),
+                    TimeUtils.format(config.step()), offset);
+            scheduledPublisher = Executors.newSingleThreadScheduledExecutor(threadFactory);
+            scheduledPublisher.scheduleAtFixedRate(this::publish, initialDelay(clock.wallTime(), offset, stepMillis),
+                    stepMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (sharedPublisher != null) {
+            sharedPublisher.detach(this);
+        }
+        if (scheduledPublisher != null) {
+            scheduledPublisher.shutdown();
+            scheduledPublisher = null;
+        }
+        super.stop();
+    }
+
+    @Override
+    public void close() {
+        closing = true;
+        super.close();
+        gaugeSampler.close();
+        if (agentSender != null) {
+            agentSender.close();
+        }
     }
 
     @Override
     protected void publish() {
-        String endpoint = config.uri() + "/api/v1/metrics";
+        // sends that can't get rate budget within the first half of the step wait for the next one; the
+        // last publish, on close, doesn't wait at all, so an over-budget registry doesn't hold up shutdown
+        long now = clock.monotonicTime();
+        publish(Collections.singletonList(this), closing ? now : now + config.step().toNanos() / 2);
+    }
 
+    /**
+     * Publishes the meters of {@code registries}, which includes this one, in combined batches through
+     * this registry's endpoints, rate limits and deferred batches. A registry that fails to collect is
+     * skipped without affecting the others.
+     */
+    void publish(List<ChartetoMeterRegistry> registries, long deadline) {
+        // serializes scheduled publishes with the final one on close
+        publishLock.lock();
         try {
-            for (List<Meter> batch : MeterPartition.partition(this, config.batchSize())) {
-                String batchId = UUID.randomUUID().toString();
-
-                String body = batch.stream()
-                        .flatMap(this::writeMeter)
-                        .collect(Collectors.joining(
-                                ",",
-                                "{\"batchId\":\"" + batchId + "\",\"metrics\":[",
-                                "]}"
-                        ));
-
-                logger.trace("sending metrics batch to charteto:\n{}", body);
-
-                httpClient.post(endpoint)
-                        .withHeader("X-API-Key", config.apiKey())
-                        .withJsonContent(body)
-                        .send()
-                        .onSuccess(r -> logger.debug("sent {} meters to charteto", batch.size()))
-                        .onError(r -> logger.error("failed to send metrics: {}", r.body()));
+            // every point is stamped with the start of the step, wherever in the step this host publishes
+            long stepMillis = config.step().toMillis();
+            long timestamp = clock.wallTime() / stepMillis * stepMillis;
+
+            Map<Meter, ChartetoMeterRegistry> owners = registries.size() == 1 ? null : new IdentityHashMap<>();
+            List<Meter> priority = new ArrayList<>();
+            List<Meter> remainder = new ArrayList<>();
+            startSampling(registries);
+            for (ChartetoMeterRegistry registry : registries) {
+                List<Meter> meters;
+                try {
+                    meters = registry.prepareMeters();
+                } catch (Throwable ex) {
+                    logger.warn("failed to collect metrics for charteto", ex);
+                    continue;
+                }
+                for (Meter meter : meters) {
+                    if (owners != null) {
+                        owners.put(meter, registry);
+                    }
+                    (priorityMeters.test(meter.getId().getName()) ? priority : remainder).add(meter);
+                }
+            }
+
+            if (agentSender != null) {
+                // the agent forwards on its own schedule, under its own rate limits; it can't forward nulls
+                ChartetoNonFiniteValues nonFiniteValues = config.nonFiniteValues();
+                priority.addAll(remainder);
+                Points points = collect(priority, owners, timestamp, nonFiniteValues == ChartetoNonFiniteValues.ZERO
+                        ? nonFiniteValues : ChartetoNonFiniteValues.DROP);
+                agentSender.send(points.series, points.values);
+                return;
+            }
+
+            // batches are numbered per set of endpoints, so each endpoint sees a complete sequence
+            List<Batch> priorityBatches = batches(priority);
+            List<Batch> remainingBatches = batches(remainder);
+            Map<List<ChartetoEndpoint>, int[]> batchCounts = new HashMap<>();
+            for (List<Batch> batches : Arrays.asList(priorityBatches, remainingBatches)) {
+                for (Batch batch : batches) {
+                    batchCounts.computeIfAbsent(batch.endpoints, endpoints -> new int[2])[0]++;
+                }
+            }
+            long cycle = ++publishCycle;
+
+            // priority meters first, then what the last step couldn't fit, then everything else;
+            // deferred batches keep their ids, so the backend can tell a late batch from a lost one
+            List<Delivery> carriedOver = new ArrayList<>(deferred);
+            deferred.clear();
+            send(priorityBatches, batchCounts, cycle, owners, timestamp, deadline);
+            for (Delivery delivery : carriedOver) {
+                deliver(described(delivery, deadline), deadline);
+            }
+            send(remainingBatches, batchCounts, cycle, owners, timestamp, deadline);
+            if (closing) {
+                // nothing publishes after the last publish, so what it couldn't send is lost
+                while (!deferred.isEmpty()) {
+                    dropped(deferred.removeFirst());
+                }
             }
         } catch (Throwable ex) {
             logger.warn("failed to send metrics to charteto", ex);
+        } finally {
+            publishLock.unlock();
+        }
+    }
+
+    /**
+     * Starts sampling the gauges of {@code registries} all at once, so they wait out one sampling budget
+     * between them rather than one each.
+     */
+    static void startSampling(List<ChartetoMeterRegistry> registries) {
+        long startNanos = System.nanoTime();
+        for (ChartetoMeterRegistry registry : registries) {
+            try {
+                registry.startSampling(startNanos);
+            } catch (Throwable ex) {
+                // collecting the registry's meters tries again, and reports the failure
+            }
+        }
+    }
+
+    private void startSampling(long startNanos) {
+        bindInternalMeters();
+        if (sampling.get() == null) {
+            sampling.compareAndSet(null, gaugeSampler.start(this, getMeters(), startNanos));
         }
     }
 
-    private Stream<String> writeMeter(Meter meter) {
-        long wallTime = clock.wallTime(); // epoch millis
+    private List<Meter> prepareMeters() {
+        bindInternalMeters();
+        ChartetoGaugeSampler.Sampling sampling = this.sampling.getAndSet(null);
+        if (sampling == null) {
+            sampling = gaugeSampler.start(this, getMeters(), System.nanoTime());
+        }
+        sampling.await();
+        return footprint.refresh(this, getMeters(), seriesCache);
+    }
 
-        return StreamSupport.stream(meter.measure().spliterator(), false)
-                .map(ms -> {
-                            Meter.Id idWithStat = meter.getId()
-                                    .withTag(ms.getStatistic());
-                            return writeMetric(idWithStat, wallTime, ms.getValue(), ms.getStatistic());
-                        }
-                );
+    private void bindInternalMeters() {
+        if (internalMetersBound.compareAndSet(false, true)) {
+            // registered on first publish rather than in the constructor, so they pick up common tags
+            // and meter filters configured after the registry was created
+            gaugeSampler.bindTo(this);
+            footprint.bindTo(this);
+        }
     }
 
-    private String writeMetric(Meter.Id id,
-                               long wallTime,
-                               double value,
-                               Statistic statistic) {
+    private List<Batch> batches(List<Meter> meters) {
+        List<Batch> batches = new ArrayList<>();
+        for (ChartetoRouter.Route route : router.route(meters)) {
+            for (List<Meter> batch : new MeterPartition(route.meters(), config.batchSize())) {
+                batches.add(new Batch(batch, route.endpoints()));
+            }
+        }
+        return batches;
+    }
+
+    /**
+     * @param batchCounts per set of endpoints, the batches it gets this cycle and the next sequence number
+     */
+    private void send(List<Batch> batches, Map<List<ChartetoEndpoint>, int[]> batchCounts, long cycle,
+                      @Nullable Map<Meter, ChartetoMeterRegistry> owners, long timestamp, long deadline) {
+        for (Batch batch : batches) {
+            int[] count = batchCounts.get(batch.endpoints);
+            ChartetoBatchId batchId = new ChartetoBatchId(batchIdPrefix, cycle, count[1]++, count[0]);
+            Points points = collect(batch.meters, owners, timestamp, config.nonFiniteValues());
+            // ids are assigned before syncing, so endpoints get the descriptors of this batch's series
+            int[] ids = descriptors == null ? null : descriptors.ids(points.series);
+
+            // sent even if every point was dropped, so the sequence has no holes
+            Forms forms = new Forms(points, ids, descriptors == null ? null : descriptors.source(), batch.meters.size(),
+                    timestamp, hostTag, config.compressed(), batchId);
+            for (ChartetoEndpoint endpoint : batch.endpoints) {
+                if (ids != null && endpoint.syncMetadata(httpClient, config.apiKey(), descriptors, config.batchSize(),
+                        config.compressed(), deadline)) {
+                    deliver(new Delivery(forms.compact(), endpoint, forms), deadline);
+                }
+                else {
+                    deliver(new Delivery(forms.full(), endpoint, null), deadline);
+                }
+            }
+        }
+    }
+
+    /**
+     * A deferred id-only delivery if its endpoint has, or can be sent, every descriptor: a failed send
+     * since may mean a backend that lost them. Otherwise the same batch, self-describing.
+     */
+    private Delivery described(Delivery delivery, long deadline) {
+        if (delivery.forms == null || delivery.endpoint.syncMetadata(httpClient, config.apiKey(), descriptors,
+                config.batchSize(), config.compressed(), deadline)) {
+            return delivery;
+        }
+        return delivery.selfDescribing();
+    }
+
+    private void deliver(Delivery delivery, long deadline) {
+        if (delivery.endpoint.acquire(delivery.payload, deadline)
+                && delivery.endpoint.send(httpClient, config.apiKey(), delivery.payload) != ChartetoEndpoint.Outcome.THROTTLED) {
+            return;
+        }
+
+        deferred.addLast(delivery);
+        // counted when first held back, not again for every step it waits
+        if (!delivery.deferred) {
+            delivery.deferred = true;
+            if (delivery.payload.batchId() != null) {
+                delivery.endpoint.deferred(delivery.payload.batchId());
+            }
+            Counter.builder("charteto.publish.deferred")
+                    .description("Points held back for the next step because a publish ran over its rate budget")
+                    .baseUnit("points")
+                    .register(this)
+                    .increment(delivery.payload.pointCount());
+        }
+        while (deferred.size() > config.maxDeferredBatches()) {
+            dropped(deferred.removeFirst());
+        }
+    }
 
-        Iterable<Tag> tags = getConventionTags(id);
-        String tagsJson = tags.iterator().hasNext()
-                ? StreamSupport.stream(tags.spliterator(), false)
-                .map(t ->
-                        "\"" + StringEscapeUtils.escapeJson(t.getKey()) + "\":\"" +
-                                StringEscapeUtils.escapeJson(t.getValue()) + "\""
-                )
-                .collect(Collectors.joining(",", ",\"tags\":{", "}"))
-                : "";
+    private void dropped(Delivery delivery) {
+        if (delivery.payload.batchId() != null) {
+            delivery.endpoint.lost(delivery.payload.batchId());
+        }
+        Counter.builder("charteto.publish.dropped")
+                .description("Deferred points dropped because too many batches were already deferred, or the registry closed")
+                .baseUnit("points")
+                .register(this)
+                .increment(delivery.payload.pointCount());
+    }
 
-        String baseUnit = ChartetoMetricMetadata.sanitizeBaseUnit(id.getBaseUnit(), null);
-        String unit = baseUnit != null
-                ? ",\"unit\":\"" + baseUnit + "\""
-                : "";
+    private Points collect(List<Meter> meters, @Nullable Map<Meter, ChartetoMeterRegistry> owners, long timestamp,
+                           ChartetoNonFiniteValues nonFiniteValues) {
+        List<ChartetoSeries> series = new ArrayList<>(meters.size());
+        double[] values = new double[2 * meters.size()];
+        int nonFinite = 0;
+        for (Meter meter : meters) {
+            for (Measurement measurement : meter.measure()) {
+                // read once; gauge values come from user code and needn't be stable
+                double value = measurement.getValue();
+                if (!Double.isFinite(value)) {
+                    nonFinite++;
+                    if (nonFiniteValues == ChartetoNonFiniteValues.DROP) {
+                        continue;
+                    }
+                    // NULL keeps the value non-finite, and writeMetric writes it as null
+                    value = nonFiniteValues == ChartetoNonFiniteValues.ZERO ? 0 : value;
+                }
+                if (series.size() == values.length) {
+                    values = Arrays.copyOf(values, 2 * values.length);
+                }
+                values[series.size()] = value;
+                ChartetoMeterRegistry owner = owners == null ? this : owners.get(meter);
+                ChartetoSeries s = owner.series(meter, measurement.getStatistic());
+                series.add(s);
+                if (owner.history != null) {
+                    owner.history.record(s, timestamp, value);
+                }
+            }
+        }
+        if (nonFinite > 0) {
+            Counter.builder("charteto.publish.nonfinite")
+                    .description("NaN and infinite points, dropped or mapped according to nonFiniteValues")
+                    .baseUnit("points")
+                    .register(this)
+                    .increment(nonFinite);
+        }
+        return new Points(series, values);
+    }
 
-        return "{"
-                + "\"name\":\"" + StringEscapeUtils.escapeJson(this.getConventionName(id)) + "\""
-                + ",\"type\":\"" + ChartetoMetricMetadata.sanitizeType(statistic) + "\""
-                + ",\"points\":[[" + wallTime + "," + value + "]]"
-                + unit
-                + tagsJson
-                + "}";
+    /**
+     * Writes a batch of points, with the tags they all share in the batch header.
+     */
+    static ChartetoPayload writePayload(List<ChartetoSeries> series, double[] values, int meterCount, long timestamp,
+                                        @Nullable String hostTag, boolean compressed, ChartetoBatchId batchId) {
+        return writePayload(series, null, null, values, meterCount, timestamp, hostTag, compressed, batchId);
+    }
+
+    /**
+     * Writes a batch of points, each with only its series id if {@code ids} are given, which the
+     * endpoints must have the descriptors of. The descriptors carry the tags, so such a batch has no
+     * host or tags in its header.
+     */
+    static ChartetoPayload writePayload(List<ChartetoSeries> series, int @Nullable [] ids, @Nullable String source,
+                                        double[] values, int meterCount, long timestamp, @Nullable String hostTag,
+                                        boolean compressed, ChartetoBatchId batchId) {
+        // tags shared by the whole batch (common tags, the host) go in the header, once
+        Map<String, String> commonTags = ids == null ? ChartetoSeries.commonTags(series) : Collections.emptyMap();
+
+        StringBuilder body = new StringBuilder(64 + 128 * series.size());
+        body.append("{\"batchId\":\"").append(batchId).append("\",\"batchCount\":").append(batchId.batchCount());
+        if (source != null) {
+            body.append(",\"source\":\"").append(source).append('"');
+        }
+        String host = hostTag == null ? null : commonTags.get(hostTag);
+        if (host != null) {
+            body.append(",\"host\":\"").append(host).append('"');
+        }
+        if (!commonTags.isEmpty()) {
+            body.append(",\"tags\":{");
+            boolean first = true;
+            for (Map.Entry<String, String> tag : commonTags.entrySet()) {
+                if (!first) {
+                    body.append(',');
+                }
+                first = false;
+                body.append('"').append(tag.getKey()).append("\":\"").append(tag.getValue()).append('"');
+            }
+            body.append('}');
+        }
+
+        body.append(",\"metrics\":[");
+        for (int i = 0; i < series.size(); i++) {
+            if (i > 0) {
+                body.append(',');
+            }
+            if (ids != null) {
+                body.append("{\"id\":").append(ids[i]).append(",\"points\":[[").append(timestamp).append(',');
+                writeValue(body, values[i]);
+                body.append("]]}");
+            }
+            else {
+                writeMetric(body, series.get(i), commonTags, timestamp, values[i]);
+            }
+        }
+        body.append("]}");
+
+        logger.trace("sending metrics batch to charteto:\n{}", body);
+        return ChartetoPayload.of(body.toString(), meterCount, series.size(), compressed, batchId);
+    }
+
+    private static void writeMetric(StringBuilder body,
+                                    ChartetoSeries series,
+                                    Map<String, String> commonTags,
+                                    long timestamp,
+                                    double value) {
+
+        body.append("{\"name\":\"").append(series.name()).append('"')
+                .append(",\"type\":\"").append(series.type()).append('"')
+                .append(",\"points\":[[").append(timestamp).append(',');
+        writeValue(body, value);
+        body.append("]]");
+        if (series.unit() != null) {
+            body.append(",\"unit\":\"").append(series.unit()).append('"');
+        }
+
+        boolean first = true;
+        for (int i = 0; i < series.tagCount(); i++) {
+            if (commonTags.containsKey(series.tagKey(i))) {
+                continue;
+            }
+            body.append(first ? ",\"tags\":{" : ",")
+                    .append('"').append(series.tagKey(i)).append("\":\"").append(series.tagValue(i)).append('"');
+            first = false;
+        }
+        if (!first) {
+            body.append('}');
+        }
+        body.append('}');
+    }
+
+    private static void writeValue(StringBuilder body, double value) {
+        if (Double.isFinite(value)) {
+            ChartetoDoubleFormat.append(body, value);
+        }
+        else {
+            body.append("null");
+        }
+    }
+
+    private ChartetoSeries series(Meter meter, Statistic statistic) {
+        ChartetoSeries[] byStatistic = seriesCache.computeIfAbsent(meter.getId(),
+                id -> new ChartetoSeries[Statistic.values().length]);
+        ChartetoSeries series = byStatistic[statistic.ordinal()];
+        if (series == null) {
+            Meter.Id id = meter.getId().withTag(statistic);
+            // descriptions only go out with the metadata, so they aren't kept otherwise
+            ChartetoMetricMetadata metadata = new ChartetoMetricMetadata(id, statistic,
+                    config.metadataSync() && config.descriptions(), null);
+            series = new ChartetoSeries(getConventionName(id), metadata.type(), metadata.unit(),
+                    metadata.description(), getConventionTags(id));
+            // racing publishes would build identical series, so a plain write is enough
+            byStatistic[statistic.ordinal()] = series;
+        }
+        return series;
     }
 
     @Override
     protected DistributionSummary newDistributionSummary(Meter.Id id,
                                                          DistributionStatisticConfig distributionStatisticConfig, double scale) {
-        DistributionStatisticConfig merged = distributionStatisticConfig
-                .merge(DistributionStatisticConfig.builder().expiry(config.step()).build());
-
-        DistributionSummary summary = new CumulativeDistributionSummary(id, clock, merged, scale, false);
+        DistributionSummary summary = footprint.takeEvicted(id, DistributionSummary.class);
+        if (summary == null) {
+            DistributionStatisticConfig merged = distributionStatisticConfig
+                    .merge(DistributionStatisticConfig.builder().expiry(config.step()).build());
+            summary = merged.isPublishingPercentiles() || merged.isPublishingHistogram()
+                    ? new ChartetoDistributionSummary(id, clock, merged, scale, new ChartetoHistogram(clock, merged, config.step()))
+                    : new CumulativeDistributionSummary(id, clock, merged, scale, false);
+        }
         HistogramGauges.registerWithCommonFormat(summary, this);
 
         return summary;
@@ -158,16 +581,31 @@ public class ChartetoMeterRegistry extends PushMeterRegistry {
 
     @Override
     protected Meter newMeter(Meter.Id id, Meter.Type type, Iterable<Measurement> measurements) {
-        return new DefaultMeter(id, type, measurements);
+        // how ChartetoFootprint registers an evicted meter again, whatever its type
+        Meter evicted = footprint.takeEvicted(id, Meter.class);
+        if (evicted instanceof Timer) {
+            HistogramGauges.registerWithCommonFormat((Timer) evicted, this);
+        }
+        else if (evicted instanceof DistributionSummary) {
+            HistogramGauges.registerWithCommonFormat((DistributionSummary) evicted, this);
+        }
+        else if (evicted instanceof LongTaskTimer) {
+            HistogramGauges.registerWithCommonFormat((LongTaskTimer) evicted, this);
+        }
+        return evicted != null ? evicted : new DefaultMeter(id, type, measurements);
     }
 
     @Override
     protected Timer newTimer(Meter.Id id, DistributionStatisticConfig distributionStatisticConfig,
                              PauseDetector pauseDetector) {
-        DistributionStatisticConfig merged = distributionStatisticConfig
-                .merge(DistributionStatisticConfig.builder().expiry(config.step()).build());
-
-        Timer timer = new CumulativeTimer(id, clock, merged, pauseDetector, getBaseTimeUnit(), false);
+        Timer timer = footprint.takeEvicted(id, Timer.class);
+        if (timer == null) {
+            DistributionStatisticConfig merged = distributionStatisticConfig
+                    .merge(DistributionStatisticConfig.builder().expiry(config.step()).build());
+            timer = merged.isPublishingPercentiles() || merged.isPublishingHistogram()
+                    ? new ChartetoTimer(id, clock, merged, pauseDetector, getBaseTimeUnit(), new ChartetoHistogram(clock, merged, config.step()))
+                    : new CumulativeTimer(id, clock, merged, pauseDetector, getBaseTimeUnit(), false);
+        }
         HistogramGauges.registerWithCommonFormat(timer, this);
 
         return timer;
@@ -175,18 +613,21 @@ public class ChartetoMeterRegistry extends PushMeterRegistry {
 
     @Override
     protected <T> Gauge newGauge(Meter.Id id, @Nullable T obj, ToDoubleFunction<T> valueFunction) {
-        return new DefaultGauge<>(id, obj, valueFunction);
+        return new ChartetoGauge<>(id, obj, valueFunction, gaugeSampler);
     }
 
     @Override
     protected Counter newCounter(Meter.Id id) {
-        return new CumulativeCounter(id);
+        Counter evicted = footprint.takeEvicted(id, Counter.class);
+        return evicted != null ? evicted : new CumulativeCounter(id);
     }
 
     @Override
     protected LongTaskTimer newLongTaskTimer(Meter.Id id, DistributionStatisticConfig distributionStatisticConfig) {
-        DefaultLongTaskTimer ltt = new DefaultLongTaskTimer(id, clock, getBaseTimeUnit(), distributionStatisticConfig,
-                false);
+        LongTaskTimer ltt = footprint.takeEvicted(id, LongTaskTimer.class);
+        if (ltt == null) {
+            ltt = new ChartetoLongTaskTimer(id, clock, getBaseTimeUnit(), distributionStatisticConfig);
+        }
         HistogramGauges.registerWithCommonFormat(ltt, this);
         return ltt;
     }
@@ -194,12 +635,20 @@ public class ChartetoMeterRegistry extends PushMeterRegistry {
     @Override
     protected <T> FunctionTimer newFunctionTimer(Meter.Id id, T obj, ToLongFunction<T> countFunction,
                                                  ToDoubleFunction<T> totalTimeFunction, TimeUnit totalTimeFunctionUnit) {
+        FunctionTimer evicted = footprint.takeEvicted(id, FunctionTimer.class);
+        if (evicted != null) {
+            return evicted;
+        }
         return new CumulativeFunctionTimer<>(id, obj, countFunction, totalTimeFunction, totalTimeFunctionUnit,
                 getBaseTimeUnit());
     }
 
     @Override
     protected <T> FunctionCounter newFunctionCounter(Meter.Id id, T obj, ToDoubleFunction<T> countFunction) {
+        FunctionCounter evicted = footprint.takeEvicted(id, FunctionCounter.class);
+        if (evicted != null) {
+            return evicted;
+        }
         return new CumulativeFunctionCounter<>(id, obj, countFunction);
     }
 
@@ -216,11 +665,145 @@ public class ChartetoMeterRegistry extends PushMeterRegistry {
                 .merge(DistributionStatisticConfig.DEFAULT);
     }
 
+    private @Nullable String publishOffsetKey() {
+        String key = config.publishOffsetKey();
+        if (key != null) {
+            return key;
+        }
+        return localHostName();
+    }
+
+    static @Nullable String localHostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            logger.debug("couldn't resolve the local host name, publishing at a random offset", e);
+            return null;
+        }
+    }
+
+    /**
+     * Offset into the step, within its first 80% so a publish has time to finish before the next
+     * step starts. Random if there is no key.
+     */
+    static long publishOffset(@Nullable String key, long stepMillis) {
+        long window = Math.max(1, (long) (stepMillis * 0.8));
+        int hash = key == null ? ThreadLocalRandom.current().nextInt() : ChartetoRouter.hash(key);
+        return 1 + (hash & 0xFFFFFFFFL) % window;
+    }
+
+    /**
+     * Delay from {@code wallTime} to the next point {@code offset} millis into a step.
+     */
+    static long initialDelay(long wallTime, long offset, long stepMillis) {
+        long delay = offset - wallTime % stepMillis;
+        return delay > 0 ? delay : delay + stepMillis;
+    }
+
+    private static Predicate<String> namePatterns(List<String> patterns) {
+        if (patterns.isEmpty()) {
+            return name -> false;
+        }
+        Pattern pattern = Pattern.compile(patterns.stream()
+                .map(glob -> Arrays.stream(glob.split("\\*", -1))
+                        .map(Pattern::quote)
+                        .collect(Collectors.joining(".*")))
+                .collect(Collectors.joining("|")));
+        return name -> pattern.matcher(name).matches();
+    }
+
+    private static final class Points {
+        private final List<ChartetoSeries> series;
+        private final double[] values;
+
+        Points(List<ChartetoSeries> series, double[] values) {
+            this.series = series;
+            this.values = values;
+        }
+    }
+
+    private static final class Batch {
+        private final List<Meter> meters;
+        private final List<ChartetoEndpoint> endpoints;
+
+        Batch(List<Meter> meters, List<ChartetoEndpoint> endpoints) {
+            this.meters = meters;
+            this.endpoints = endpoints;
+        }
+    }
+
+    /**
+     * A batch's points, serialized (and compressed) at most once per form however many endpoints get
+     * it. Kept by deferred id-only deliveries, so the series their ids refer to, and with them the
+     * descriptors, stay around until they're sent.
+     */
+    private static final class Forms {
+        private final Points points;
+        private final int @Nullable [] ids;
+        private final @Nullable String source;
+        private final int meterCount;
+        private final long timestamp;
+        private final @Nullable String hostTag;
+        private final boolean compressed;
+        private final ChartetoBatchId batchId;
+        private @Nullable ChartetoPayload compact;
+        private @Nullable ChartetoPayload full;
+
+        Forms(Points points, int @Nullable [] ids, @Nullable String source, int meterCount, long timestamp,
+              @Nullable String hostTag, boolean compressed, ChartetoBatchId batchId) {
+            this.points = points;
+            this.ids = ids;
+            this.source = source;
+            this.meterCount = meterCount;
+            this.timestamp = timestamp;
+            this.hostTag = hostTag;
+            this.compressed = compressed;
+            this.batchId = batchId;
+        }
+
+        ChartetoPayload compact() {
+            if (compact == null) {
+                compact = writePayload(points.series, ids, source, points.values, meterCount, timestamp, hostTag,
+                        compressed, batchId);
+            }
+            return compact;
+        }
+
+        ChartetoPayload full() {
+            if (full == null) {
+                full = writePayload(points.series, points.values, meterCount, timestamp, hostTag, compressed, batchId);
+            }
+            return full;
+        }
+    }
+
+    private static final class Delivery {
+        private final ChartetoPayload payload;
+        private final ChartetoEndpoint endpoint;
+        // set for id-only payloads
+        private final @Nullable Forms forms;
+        // guarded by the publish lock
+        private boolean deferred;
+
+        Delivery(ChartetoPayload payload, ChartetoEndpoint endpoint, @Nullable Forms forms) {
+            this.payload = payload;
+            this.endpoint = endpoint;
+            this.forms = forms;
+        }
+
+        Delivery selfDescribing() {
+            Delivery delivery = new Delivery(forms == null ? payload : forms.full(), endpoint, null);
+            delivery.deferred = deferred;
+            return delivery;
+        }
+    }
+
     public static class Builder {
         private final ChartetoConfig config;
         private Clock clock;
         private ThreadFactory threadFactory;
         private HttpSender httpClient;
+        private @Nullable ChartetoSharedPublisher sharedPublisher;
 
         Builder(ChartetoConfig config) {
             this.clock = Clock.SYSTEM;
@@ -244,8 +827,18 @@ public class ChartetoMeterRegistry extends PushMeterRegistry {
             return this;
         }
 
+        /**
+         * Publish through a publisher shared with other registries instead of a thread and HTTP
+         * client of this registry's own. The publisher's HTTP client replaces {@link #httpClient}.
+         */
+        public ChartetoMeterRegistry.Builder sharedPublisher(ChartetoSharedPublisher sharedPublisher) {
+            this.sharedPublisher = sharedPublisher;
+            return this;
+        }
+
         public ChartetoMeterRegistry build() {
-            return new ChartetoMeterRegistry(this.config, this.clock, this.threadFactory, this.httpClient);
+            return new ChartetoMeterRegistry(this.config, this.clock, this.threadFactory,
+                    this.sharedPublisher == null ? this.httpClient : this.sharedPublisher.httpClient(), this.sharedPublisher);
         }
     }
 }
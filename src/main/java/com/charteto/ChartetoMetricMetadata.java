@@ -27,6 +27,23 @@ class ChartetoMetricMetadata {
         this.type = sanitizeType(statistic);
     }
 
+    String type() {
+        return type;
+    }
+
+    @Nullable
+    String unit() {
+        return sanitizeBaseUnit(id.getBaseUnit(), overrideBaseUnit);
+    }
+
+    /**
+     * The meter's description, if descriptions are enabled.
+     */
+    @Nullable
+    String description() {
+        return descriptionsEnabled ? id.getDescription() : null;
+    }
+
     static @Nullable String sanitizeBaseUnit(@Nullable String baseUnit, @Nullable String overrideBaseUnit) {
         String sanitizeBaseUnit = overrideBaseUnit != null ? overrideBaseUnit : baseUnit;
         if (sanitizeBaseUnit != null) {
@@ -0,0 +1,23 @@
+package com.charteto;
+
+/**
+ * What to publish for NaN and infinite values, which JSON can't represent, e.g. the value of a
+ * gauge whose function failed or the max of a distribution that recorded nothing.
+ */
+public enum ChartetoNonFiniteValues {
+
+    /**
+     * Leave the point out of the batch.
+     */
+    DROP,
+
+    /**
+     * Publish the point with a {@code null} value.
+     */
+    NULL,
+
+    /**
+     * Publish the point as zero.
+     */
+    ZERO
+}
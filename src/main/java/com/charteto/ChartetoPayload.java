@@ -0,0 +1,73 @@
+package com.charteto;
+
+import org.jspecify.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A serialized (and optionally gzipped) metrics batch. Built once per batch and shared by every
+ * endpoint the batch is routed to.
+ */
+final class ChartetoPayload {
+
+    private final byte[] body;
+    private final boolean compressed;
+    private final int meterCount;
+    private final int pointCount;
+    private final @Nullable ChartetoBatchId batchId;
+
+    private ChartetoPayload(byte[] body, boolean compressed, int meterCount, int pointCount, @Nullable ChartetoBatchId batchId) {
+        this.body = body;
+        this.compressed = compressed;
+        this.meterCount = meterCount;
+        this.pointCount = pointCount;
+        this.batchId = batchId;
+    }
+
+    static ChartetoPayload of(String json, int meterCount, int pointCount, boolean compress) {
+        return of(json, meterCount, pointCount, compress, null);
+    }
+
+    static ChartetoPayload of(String json, int meterCount, int pointCount, boolean compress, @Nullable ChartetoBatchId batchId) {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        return new ChartetoPayload(compress ? gzip(bytes) : bytes, compress, meterCount, pointCount, batchId);
+    }
+
+    byte[] body() {
+        return body;
+    }
+
+    boolean compressed() {
+        return compressed;
+    }
+
+    int meterCount() {
+        return meterCount;
+    }
+
+    int pointCount() {
+        return pointCount;
+    }
+
+    /**
+     * The id written into the batch, if it has one of {@link ChartetoBatchId}'s form.
+     */
+    @Nullable
+    ChartetoBatchId batchId() {
+        return batchId;
+    }
+
+    private static byte[] gzip(byte[] bytes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+}
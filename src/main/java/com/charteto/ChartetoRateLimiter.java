@@ -0,0 +1,143 @@
+package com.charteto;
+
+import io.micrometer.core.instrument.Clock;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token buckets on requests per second and bytes per second for one endpoint. Each bucket holds at
+ * most one second of budget, so publish bursts are paced instead of tripping the API's rate limits.
+ * An endpoint that answered 429 is also backed off from, limits or not, for longer on each 429 in a row.
+ */
+final class ChartetoRateLimiter {
+
+    static final long MIN_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(1);
+    static final long MAX_BACKOFF_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final Clock clock;
+    private final Sleeper sleeper;
+    private final TokenBucket requests;
+    private final TokenBucket bytes;
+    private long backoffNanos;
+    private long throttledUntil;
+
+    /**
+     * @param requestsPerSecond request budget, or {@code <= 0} for no limit
+     * @param bytesPerSecond byte budget, or {@code <= 0} for no limit
+     */
+    ChartetoRateLimiter(Clock clock, double requestsPerSecond, double bytesPerSecond) {
+        this(clock, requestsPerSecond, bytesPerSecond, TimeUnit.NANOSECONDS::sleep);
+    }
+
+    /**
+     * @param sleeper waits on the same time source as {@code clock}, e.g. advances a mock clock
+     */
+    ChartetoRateLimiter(Clock clock, double requestsPerSecond, double bytesPerSecond, Sleeper sleeper) {
+        this.clock = clock;
+        this.sleeper = sleeper;
+        long now = clock.monotonicTime();
+        this.requests = new TokenBucket(requestsPerSecond, now);
+        this.bytes = new TokenBucket(bytesPerSecond, now);
+    }
+
+    /**
+     * Takes budget for one request of {@code byteCount} bytes, waiting for the buckets to refill as
+     * long as that completes before {@code deadlineNanos} (on the clock's monotonic time).
+     *
+     * @return {@code false} if the budget can't be had by the deadline, in which case nothing is taken
+     */
+    boolean acquire(long byteCount, long deadlineNanos) {
+        while (true) {
+            long now;
+            long wait;
+            synchronized (this) {
+                now = clock.monotonicTime();
+                wait = Math.max(Math.max(requests.nanosUntilAvailable(1, now), bytes.nanosUntilAvailable(byteCount, now)),
+                        throttledUntil - now);
+                if (wait <= 0) {
+                    requests.take(1);
+                    bytes.take(byteCount);
+                    return true;
+                }
+            }
+            if (now + wait > deadlineNanos) {
+                return false;
+            }
+            // not holding the lock, so other senders to the endpoint can still give up or take what's left
+            try {
+                sleeper.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            if (clock.monotonicTime() == now) {
+                // a clock that doesn't follow the sleeper would never get to the budget
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Empties both buckets and backs off, after the endpoint answered with 429 Too Many Requests.
+     */
+    synchronized void throttle() {
+        long now = clock.monotonicTime();
+        requests.drain(now);
+        bytes.drain(now);
+        backoffNanos = Math.min(MAX_BACKOFF_NANOS, Math.max(MIN_BACKOFF_NANOS, 2 * backoffNanos));
+        throttledUntil = now + backoffNanos;
+    }
+
+    /**
+     * Resets the backoff after a request went through.
+     */
+    synchronized void succeeded() {
+        backoffNanos = 0;
+    }
+
+    interface Sleeper {
+        void sleep(long nanos) throws InterruptedException;
+    }
+
+    private static final class TokenBucket {
+        private final double capacity;
+        private final double tokensPerNano;
+        private double tokens;
+        private long lastRefill;
+
+        TokenBucket(double perSecond, long now) {
+            this.capacity = perSecond;
+            this.tokensPerNano = perSecond / TimeUnit.SECONDS.toNanos(1);
+            this.tokens = perSecond;
+            this.lastRefill = now;
+        }
+
+        long nanosUntilAvailable(long amount, long now) {
+            if (capacity <= 0) {
+                return 0;
+            }
+            refill(now);
+            // a request larger than the whole bucket goes out once the bucket is full, leaving a debt
+            double needed = Math.min(amount, capacity);
+            return tokens >= needed ? 0 : (long) Math.ceil((needed - tokens) / tokensPerNano);
+        }
+
+        void take(long amount) {
+            if (capacity > 0) {
+                tokens -= amount;
+            }
+        }
+
+        void drain(long now) {
+            if (capacity > 0) {
+                refill(now);
+                tokens = Math.min(tokens, 0);
+            }
+        }
+
+        private void refill(long now) {
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+            lastRefill = now;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.charteto;
+
+import io.micrometer.core.instrument.Meter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Decides which endpoints receive which meters. With {@link ChartetoRouting#REPLICATE} every meter
+ * goes to every endpoint; with {@link ChartetoRouting#CONSISTENT_HASH} each meter name is owned by
+ * one endpoint on a hash ring, so adding or removing a shard only moves a fraction of the series.
+ */
+final class ChartetoRouter {
+
+    private static final int VIRTUAL_NODES_PER_ENDPOINT = 128;
+
+    private final List<ChartetoEndpoint> endpoints;
+    private final ChartetoRouting routing;
+
+    // sorted ring positions and the index of the endpoint owning each position
+    private final int[] ringHashes;
+    private final int[] ringOwners;
+
+    ChartetoRouter(List<ChartetoEndpoint> endpoints, ChartetoRouting routing) {
+        this.endpoints = Collections.unmodifiableList(new ArrayList<>(endpoints));
+        this.routing = routing;
+
+        long[] ring = new long[endpoints.size() * VIRTUAL_NODES_PER_ENDPOINT];
+        for (int e = 0; e < endpoints.size(); e++) {
+            for (int v = 0; v < VIRTUAL_NODES_PER_ENDPOINT; v++) {
+                int hash = hash(endpoints.get(e).uri() + "#" + v);
+                // order by hash, keep the owner in the low bits so ties resolve deterministically
+                ring[e * VIRTUAL_NODES_PER_ENDPOINT + v] = ((long) hash << 32) | e;
+            }
+        }
+        Arrays.sort(ring);
+        this.ringHashes = new int[ring.length];
+        this.ringOwners = new int[ring.length];
+        for (int i = 0; i < ring.length; i++) {
+            ringHashes[i] = (int) (ring[i] >> 32);
+            ringOwners[i] = (int) ring[i];
+        }
+    }
+
+    List<ChartetoEndpoint> endpoints() {
+        return endpoints;
+    }
+
+    List<Route> route(List<Meter> meters) {
+        if (routing == ChartetoRouting.REPLICATE || endpoints.size() == 1) {
+            return Collections.singletonList(new Route(meters, endpoints));
+        }
+
+        List<List<Meter>> shards = new ArrayList<>(endpoints.size());
+        for (int i = 0; i < endpoints.size(); i++) {
+            shards.add(new ArrayList<>());
+        }
+        for (Meter meter : meters) {
+            shards.get(owner(meter.getId().getName())).add(meter);
+        }
+
+        List<Route> routes = new ArrayList<>(endpoints.size());
+        for (int i = 0; i < endpoints.size(); i++) {
+            if (!shards.get(i).isEmpty()) {
+                routes.add(new Route(shards.get(i), Collections.singletonList(endpoints.get(i))));
+            }
+        }
+        return routes;
+    }
+
+    int owner(String meterName) {
+        int hash = hash(meterName);
+        int i = Arrays.binarySearch(ringHashes, hash);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return ringOwners[i == ringHashes.length ? 0 : i];
+    }
+
+    /**
+     * Murmur3 over the UTF-8 bytes; {@link String#hashCode()} clusters similar names on the ring.
+     */
+    static int hash(String s) {
+        byte[] data = s.getBytes(StandardCharsets.UTF_8);
+        int h = 0x9747b28c;
+        int i = 0;
+        for (; i + 4 <= data.length; i += 4) {
+            int k = (data[i] & 0xff) | (data[i + 1] & 0xff) << 8 | (data[i + 2] & 0xff) << 16 | (data[i + 3] & 0xff) << 24;
+            k *= 0xcc9e2d51;
+            k = Integer.rotateLeft(k, 15);
+            k *= 0x1b873593;
+            h ^= k;
+            h = Integer.rotateLeft(h, 13);
+            h = h * 5 + 0xe6546b64;
+        }
+        // the last 1 to 3 bytes, little-endian
+        if (i < data.length) {
+            int k = 0;
+            for (int j = data.length - 1; j >= i; j--) {
+                k = k << 8 | (data[j] & 0xff);
+            }
+            k *= 0xcc9e2d51;
+            k = Integer.rotateLeft(k, 15);
+            k *= 0x1b873593;
+            h ^= k;
+        }
+        h ^= data.length;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    static final class Route {
+        private final List<Meter> meters;
+        private final List<ChartetoEndpoint> endpoints;
+
+        Route(List<Meter> meters, List<ChartetoEndpoint> endpoints) {
+            this.meters = meters;
+            this.endpoints = endpoints;
+        }
+
+        List<Meter> meters() {
+            return meters;
+        }
+
+        List<ChartetoEndpoint> endpoints() {
+            return endpoints;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.charteto;
+
+/**
+ * How metrics are distributed when more than one Charteto endpoint is configured.
+ */
+public enum ChartetoRouting {
+
+    /**
+     * Every endpoint receives every metric, e.g. a primary and a DR region.
+     */
+    REPLICATE,
+
+    /**
+     * Each meter name is assigned to exactly one endpoint by consistent hashing, e.g. ingestion shards.
+     */
+    CONSISTENT_HASH
+}
@@ -0,0 +1,131 @@
+package com.charteto;
+
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.util.StringEscapeUtils;
+import org.jspecify.annotations.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One published series, i.e. a meter's statistic, with its name, type, unit, description and tags
+ * already run through the naming convention and escaped for JSON. Built once per series and reused by every publish.
+ */
+final class ChartetoSeries {
+
+    private final String name;
+    private final String type;
+    private final @Nullable String unit;
+    private final @Nullable String description;
+    private final String[] tagKeys;
+    private final String[] tagValues;
+
+    ChartetoSeries(String name, String type, @Nullable String unit, List<Tag> tags) {
+        this(name, type, unit, null, tags);
+    }
+
+    ChartetoSeries(String name, String type, @Nullable String unit, @Nullable String description, List<Tag> tags) {
+        this.name = StringEscapeUtils.escapeJson(name);
+        this.type = type;
+        this.unit = unit;
+        this.description = description == null ? null : StringEscapeUtils.escapeJson(description);
+        this.tagKeys = new String[tags.size()];
+        this.tagValues = new String[tags.size()];
+        for (int i = 0; i < tags.size(); i++) {
+            tagKeys[i] = StringEscapeUtils.escapeJson(tags.get(i).getKey());
+            tagValues[i] = StringEscapeUtils.escapeJson(tags.get(i).getValue());
+        }
+    }
+
+    private ChartetoSeries(String name, String type, @Nullable String unit, String[] tagKeys, String[] tagValues) {
+        this.name = name;
+        this.type = type;
+        this.unit = unit;
+        this.description = null;
+        this.tagKeys = tagKeys;
+        this.tagValues = tagValues;
+    }
+
+    /**
+     * A series whose name and tags are already escaped, e.g. decoded from another process.
+     */
+    static ChartetoSeries escaped(String name, String type, @Nullable String unit, String[] tagKeys, String[] tagValues) {
+        return new ChartetoSeries(name, type, unit, tagKeys.clone(), tagValues.clone());
+    }
+
+    String name() {
+        return name;
+    }
+
+    String type() {
+        return type;
+    }
+
+    @Nullable
+    String unit() {
+        return unit;
+    }
+
+    /**
+     * Only kept when descriptions are sent, see {@link ChartetoConfig#metadataSync()}.
+     */
+    @Nullable
+    String description() {
+        return description;
+    }
+
+    int tagCount() {
+        return tagKeys.length;
+    }
+
+    String tagKey(int i) {
+        return tagKeys[i];
+    }
+
+    String tagValue(int i) {
+        return tagValues[i];
+    }
+
+    /**
+     * Approximate heap retained by this series, in bytes.
+     */
+    long footprint() {
+        long bytes = 32 + ChartetoFootprint.string(name) + ChartetoFootprint.string(unit)
+                + ChartetoFootprint.string(description) + 2 * (16 + 8L * tagKeys.length);
+        for (int i = 0; i < tagKeys.length; i++) {
+            bytes += ChartetoFootprint.string(tagKeys[i]) + ChartetoFootprint.string(tagValues[i]);
+        }
+        return bytes;
+    }
+
+    @Nullable
+    String tag(String key) {
+        for (int i = 0; i < tagKeys.length; i++) {
+            if (tagKeys[i].equals(key)) {
+                return tagValues[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Tags with the same value on every series, e.g. common tags like {@code env} or {@code instance}.
+     * These are written once in the batch header instead of on every point.
+     */
+    static Map<String, String> commonTags(List<ChartetoSeries> series) {
+        Map<String, String> common = new LinkedHashMap<>();
+        if (series.isEmpty()) {
+            return common;
+        }
+        ChartetoSeries first = series.get(0);
+        for (int i = 0; i < first.tagKeys.length; i++) {
+            common.put(first.tagKeys[i], first.tagValues[i]);
+        }
+        for (int s = 1; s < series.size() && !common.isEmpty(); s++) {
+            ChartetoSeries other = series.get(s);
+            common.entrySet().removeIf(tag -> !tag.getValue().equals(other.tag(tag.getKey())));
+        }
+        return common;
+    }
+}
@@ -0,0 +1,137 @@
+package com.charteto;
+
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.util.NamedThreadFactory;
+import io.micrometer.core.instrument.util.TimeUtils;
+import io.micrometer.core.ipc.http.HttpSender;
+import io.micrometer.core.ipc.http.HttpUrlConnectionSender;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One publishing thread and HTTP client for many {@link ChartetoMeterRegistry registries}, e.g. one per
+ * tenant of a multi-tenant server. Registries attach with
+ * {@link ChartetoMeterRegistry.Builder#sharedPublisher(ChartetoSharedPublisher)}.
+ * <p>
+ * Registries with the same API key, endpoints and publish settings (batching, routing, rate limits,
+ * priority meters, non-finite values, compression, host tag and metadata sync) are published together
+ * in combined batches; registries that differ in any of them get groups of their own. The first one
+ * attached sends for the group: its endpoints, rate limiters and deferred batches serve the whole group
+ * and the group's {@code charteto.publish.*} meters are registered with it. Groups are isolated from
+ * each other. Every registry's gauges are sampled at once, so a publish waits out one sampling budget
+ * in all. It never waits for rate budget, as that would hold up every group behind it; batches over
+ * budget are deferred to the next step straight away.
+ */
+public class ChartetoSharedPublisher implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChartetoSharedPublisher.class);
+
+    private static final ThreadFactory DEFAULT_THREAD_FACTORY = new NamedThreadFactory("charteto-shared-publisher");
+
+    private final Duration step;
+    private final Clock clock;
+    private final HttpSender httpClient;
+    private final ScheduledExecutorService scheduler;
+
+    // by API key, endpoints and publish settings, in the order registries attached; guarded by this
+    private final Map<String, List<ChartetoMeterRegistry>> groups = new LinkedHashMap<>();
+
+    public ChartetoSharedPublisher(Duration step) {
+        this(step, Clock.SYSTEM, new HttpUrlConnectionSender(), DEFAULT_THREAD_FACTORY);
+    }
+
+    public ChartetoSharedPublisher(Duration step, Clock clock, HttpSender httpClient, ThreadFactory threadFactory) {
+        this.step = step;
+        this.clock = clock;
+        this.httpClient = httpClient;
+
+        long stepMillis = step.toMillis();
+        long offset = ChartetoMeterRegistry.publishOffset(ChartetoMeterRegistry.localHostName(), stepMillis);
+        logger.info("publishing metrics for attached registries every {}, {}ms into the step", TimeUtils.format(step),
+                offset);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        this.scheduler.scheduleAtFixedRate(this::publish, ChartetoMeterRegistry.initialDelay(clock.wallTime(), offset, stepMillis),
+                stepMillis, TimeUnit.MILLISECONDS);
+    }
+
+    HttpSender httpClient() {
+        return httpClient;
+    }
+
+    synchronized void attach(ChartetoMeterRegistry registry, ChartetoConfig config) {
+        if (!config.step().equals(step)) {
+            throw new IllegalArgumentException("registries attached to a shared publisher must use its step of "
+                    + TimeUtils.format(step) + ", not " + TimeUtils.format(config.step()));
+        }
+        List<ChartetoMeterRegistry> group = groups.computeIfAbsent(groupKey(config), key -> new ArrayList<>());
+        if (!group.contains(registry)) {
+            group.add(registry);
+        }
+    }
+
+    /**
+     * Everything the registry that sends for a group applies to the others' meters.
+     */
+    static String groupKey(ChartetoConfig config) {
+        return String.join("\n", config.apiKey(), String.valueOf(config.uris()), String.valueOf(config.routing()),
+                String.valueOf(config.batchSize()), String.valueOf(config.maxRequestsPerSecond()),
+                String.valueOf(config.maxBytesPerSecond()), String.valueOf(config.maxDeferredBatches()),
+                String.valueOf(config.priorityMeters()), String.valueOf(config.nonFiniteValues()),
+                String.valueOf(config.compressed()), String.valueOf(config.hostTag()),
+                String.valueOf(config.metadataSync()), String.valueOf(config.descriptions()));
+    }
+
+    /**
+     * Once this returns the registry is no longer part of publishes that start afterwards. A publish
+     * already in progress may still include it.
+     */
+    synchronized void detach(ChartetoMeterRegistry registry) {
+        for (Iterator<List<ChartetoMeterRegistry>> groups = this.groups.values().iterator(); groups.hasNext(); ) {
+            List<ChartetoMeterRegistry> group = groups.next();
+            if (group.remove(registry) && group.isEmpty()) {
+                groups.remove();
+            }
+        }
+    }
+
+    void publish() {
+        // sent outside the lock, so registries attaching or detaching don't wait out a network round trip
+        List<List<ChartetoMeterRegistry>> groups = new ArrayList<>();
+        synchronized (this) {
+            for (List<ChartetoMeterRegistry> group : this.groups.values()) {
+                groups.add(new ArrayList<>(group));
+            }
+        }
+        long deadline = clock.monotonicTime();
+        // every tenant's gauges are sampled at once, so the cycle waits out one sampling budget, not one per tenant
+        List<ChartetoMeterRegistry> registries = new ArrayList<>();
+        for (List<ChartetoMeterRegistry> group : groups) {
+            registries.addAll(group);
+        }
+        ChartetoMeterRegistry.startSampling(registries);
+        for (List<ChartetoMeterRegistry> group : groups) {
+            group.get(0).publish(group, deadline);
+        }
+    }
+
+    /**
+     * Stops publishing after a last publish of the registries still attached. Registries publish
+     * themselves when they're closed, so closing them first loses nothing.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        publish();
+    }
+}
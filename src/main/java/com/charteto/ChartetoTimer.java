@@ -0,0 +1,27 @@
+package com.charteto;
+
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.cumulative.CumulativeTimer;
+import io.micrometer.core.instrument.distribution.DistributionStatisticConfig;
+import io.micrometer.core.instrument.distribution.pause.PauseDetector;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cumulative timer whose percentiles and histogram buckets come from a {@link ChartetoHistogram}.
+ * Percentiles cover the last completed step rather than a rolling {@code bufferLength} window.
+ */
+class ChartetoTimer extends CumulativeTimer {
+
+    private final ChartetoHistogram histogram;
+
+    ChartetoTimer(Id id, Clock clock, DistributionStatisticConfig distributionStatisticConfig,
+                  PauseDetector pauseDetector, TimeUnit baseTimeUnit, ChartetoHistogram histogram) {
+        super(id, clock, distributionStatisticConfig, pauseDetector, baseTimeUnit, histogram);
+        this.histogram = histogram;
+    }
+
+    ChartetoHistogram histogram() {
+        return histogram;
+    }
+}
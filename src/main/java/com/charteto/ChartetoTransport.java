@@ -0,0 +1,18 @@
+package com.charteto;
+
+/**
+ * How a registry gets its metrics to Charteto.
+ */
+public enum ChartetoTransport {
+
+    /**
+     * Batches are posted to the configured endpoints.
+     */
+    HTTP,
+
+    /**
+     * Deltas are sent, fire-and-forget, to a {@link ChartetoAgent} on the same host over loopback UDP.
+     * The agent merges what every process on the host sends and forwards it to Charteto.
+     */
+    AGENT
+}
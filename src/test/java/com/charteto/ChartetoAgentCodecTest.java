@@ -0,0 +1,252 @@
+package com.charteto;
+
+import io.micrometer.core.instrument.Tags;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChartetoAgentCodecTest {
+
+    private final List<ByteBuffer> datagrams = new ArrayList<>();
+    private final ChartetoAgentCodec.Encoder encoder = new ChartetoAgentCodec.Encoder(datagram -> {
+        ByteBuffer copy = ByteBuffer.allocate(datagram.remaining());
+        copy.put(datagram).flip();
+        datagrams.add(copy);
+    });
+
+    private static ChartetoSeries series(String name, String type, String... tags) {
+        return new ChartetoSeries(name, type, null, Tags.of(tags).stream().collect(Collectors.toList()));
+    }
+
+    @Test
+    public void pointsRoundTrip() {
+        ChartetoSeries requests = new ChartetoSeries("http.requests", "COUNT", "request",
+                Tags.of("route", "/a\"b", "env", "prod").stream().collect(Collectors.toList()));
+        encoder.add(requests, true, 42);
+        encoder.add(series("queue.size", "GAUGE"), false, -0.25);
+        encoder.flush();
+
+        assertEquals(1, datagrams.size());
+        List<ChartetoAgentCodec.Point> points = ChartetoAgentCodec.decode(datagrams.get(0));
+        assertEquals(2, points.size());
+
+        ChartetoAgentCodec.Point first = points.get(0);
+        assertTrue(first.cumulative());
+        assertEquals(42, first.value(), 0);
+        assertEquals("http.requests", first.series().name());
+        assertEquals("COUNT", first.series().type());
+        assertEquals("request", first.series().unit());
+        assertEquals(requests.tagValue(1), first.series().tagValue(1));
+
+        ChartetoAgentCodec.Point second = points.get(1);
+        assertFalse(second.cumulative());
+        assertEquals(-0.25, second.value(), 0);
+        assertNull(second.series().unit());
+        assertEquals(0, second.series().tagCount());
+    }
+
+    @Test
+    public void sameSeriesHasTheSameKeyInEveryDatagram() {
+        encoder.add(series("c", "COUNT", "k", "v"), true, 1);
+        encoder.flush();
+        encoder.add(series("c", "COUNT", "k", "v"), true, 2);
+        encoder.add(series("c", "COUNT", "k", "w"), true, 3);
+        encoder.flush();
+
+        String key = ChartetoAgentCodec.decode(datagrams.get(0)).get(0).key();
+        List<ChartetoAgentCodec.Point> second = ChartetoAgentCodec.decode(datagrams.get(1));
+        assertEquals(key, second.get(0).key());
+        assertFalse(key.equals(second.get(1).key()));
+    }
+
+    @Test
+    public void repeatedStringsAreSentOncePerDatagram() {
+        encoder.add(series("first", "COUNT", "env", "production", "region", "eu-west-1"), true, 1);
+        encoder.flush();
+        int single = datagrams.get(0).remaining();
+
+        encoder.add(series("first", "COUNT", "env", "production", "region", "eu-west-1"), true, 1);
+        encoder.add(series("second", "COUNT", "env", "production", "region", "eu-west-1"), true, 1);
+        encoder.flush();
+
+        assertTrue("the second point should cost little more than its name", datagrams.get(1).remaining() - single < single / 2);
+    }
+
+    @Test
+    public void pointsAreSplitIntoSelfContainedDatagrams() {
+        for (int i = 0; i < 2000; i++) {
+            assertTrue(encoder.add(series("meter." + i, "GAUGE", "index", Integer.toString(i)), false, i + 0.5));
+        }
+        encoder.flush();
+
+        assertTrue(datagrams.size() > 1);
+        int points = 0;
+        for (ByteBuffer datagram : datagrams) {
+            assertTrue(datagram.remaining() <= ChartetoAgentCodec.MAX_DATAGRAM);
+            points += ChartetoAgentCodec.decode(datagram).size();
+        }
+        assertEquals(2000, points);
+    }
+
+    @Test
+    public void pointTooLargeForAnyDatagramIsDropped() {
+        char[] huge = new char[70_000];
+        Arrays.fill(huge, 'x');
+
+        assertTrue(encoder.add(series("small", "GAUGE"), false, 1));
+        assertFalse(encoder.add(series("huge", "GAUGE", "tag", new String(huge)), false, 1));
+        encoder.flush();
+
+        assertEquals(1, datagrams.size());
+        assertEquals("small", ChartetoAgentCodec.decode(datagrams.get(0)).get(0).series().name());
+    }
+
+    @Test
+    public void malformedDatagramsAreRejected() {
+        encoder.add(series("c", "COUNT", "k", "v"), true, 1);
+        encoder.flush();
+        ByteBuffer datagram = datagrams.get(0);
+
+        for (ByteBuffer malformed : Arrays.asList(
+                ByteBuffer.wrap(new byte[]{1, 2, 3}),
+                ByteBuffer.wrap(Arrays.copyOf(datagram.array(), datagram.remaining() - 1)))) {
+            try {
+                ChartetoAgentCodec.decode(malformed);
+                throw new AssertionError("expected a malformed datagram to be rejected");
+            } catch (IllegalArgumentException expected) {
+                // rejected
+            }
+        }
+    }
+
+    @Test
+    public void truncatedDatagramsAreRejected() {
+        encoder.add(series("c", "COUNT", "k", "v"), true, 1);
+        encoder.add(series("g", "GAUGE", "k", "w"), false, 0.5);
+        encoder.flush();
+        byte[] datagram = Arrays.copyOf(datagrams.get(0).array(), datagrams.get(0).remaining());
+
+        // every prefix either ends on a point boundary or is rejected
+        for (int length = 0; length < datagram.length; length++) {
+            try {
+                ChartetoAgentCodec.decode(ByteBuffer.wrap(Arrays.copyOf(datagram, length)));
+            } catch (IllegalArgumentException expected) {
+                // rejected
+            }
+        }
+        assertRejected(Arrays.copyOf(datagram, 1));
+        assertRejected(Arrays.copyOf(datagram, datagram.length - 1));
+    }
+
+    @Test
+    public void negativeStringReferenceIsRejected() {
+        // a name that's a reference to index -3 of the string table
+        assertRejected(datagram(0, -1L));
+    }
+
+    @Test
+    public void negativeTagCountIsRejected() {
+        assertRejected(datagram(0, 1, 1, 'c', 0, -1L));
+        assertRejected(datagram(0, 1, 1, 'c', 0, 1L << 40));
+    }
+
+    @Test
+    public void oversizedStringLengthIsRejected() {
+        assertRejected(datagram(0, 1, 1000, 'c'));
+        assertRejected(datagram(0, 1, 1L << 32 | 1, 'c', 0, 0, 2));
+        assertRejected(datagram(0, 1, -1L, 'c'));
+    }
+
+    @Test
+    public void randomlyCorruptedDatagramsAreRejectedOrDecoded() {
+        for (int i = 0; i < 20; i++) {
+            encoder.add(series("meter." + i, i % 2 == 0 ? "COUNT" : "GAUGE", "k", "v" + i), i % 2 == 0, i * 1.5);
+        }
+        encoder.flush();
+        byte[] datagram = Arrays.copyOf(datagrams.get(0).array(), datagrams.get(0).remaining());
+
+        Random random = new Random(42);
+        for (int i = 0; i < 10_000; i++) {
+            byte[] corrupted = Arrays.copyOf(datagram, 3 + random.nextInt(datagram.length - 2));
+            for (int flips = 1 + random.nextInt(4); flips > 0; flips--) {
+                corrupted[2 + random.nextInt(corrupted.length - 2)] = (byte) random.nextInt();
+            }
+            try {
+                ChartetoAgentCodec.decode(ByteBuffer.wrap(corrupted));
+            } catch (IllegalArgumentException expected) {
+                // rejected; any other exception fails the test
+            }
+        }
+    }
+
+    @Test
+    public void quotesAndBackslashesStayEscaped() {
+        ChartetoSeries series = series("evil\",\"x", "GAUGE", "path", "C:\\temp");
+        encoder.add(series, false, 1);
+        encoder.flush();
+
+        ChartetoSeries decoded = ChartetoAgentCodec.decode(datagrams.get(0)).get(0).series();
+        assertEquals(series.name(), decoded.name());
+        assertEquals("evil\\\",\\\"x", decoded.name());
+        assertEquals("C:\\\\temp", decoded.tagValue(0));
+    }
+
+    @Test
+    public void stringsThatArentEscapedAreRejected() {
+        for (String name : Arrays.asList("evil\",\"x", "back\\", "bad\\q", "short\\u12", "line\nbreak")) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            Object[] values = new Object[4 + bytes.length + 2];
+            values[0] = 0;
+            values[1] = 1;
+            values[2] = bytes.length;
+            for (int i = 0; i < bytes.length; i++) {
+                values[3 + i] = (char) bytes[i];
+            }
+            values[3 + bytes.length] = 0;
+            values[4 + bytes.length] = 0;
+            values[5 + bytes.length] = 0;
+            assertRejected(datagram(values));
+        }
+    }
+
+    /**
+     * A datagram header followed by the given values as varints, except chars, which are written as a byte.
+     */
+    private static byte[] datagram(Object... values) {
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        buffer.put((byte) 0xC7).put((byte) 1);
+        for (Object value : values) {
+            if (value instanceof Character) {
+                buffer.put((byte) (char) value);
+                continue;
+            }
+            long v = ((Number) value).longValue();
+            while ((v & ~0x7FL) != 0) {
+                buffer.put((byte) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            buffer.put((byte) v);
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private static void assertRejected(byte[] datagram) {
+        try {
+            ChartetoAgentCodec.decode(ByteBuffer.wrap(datagram));
+            throw new AssertionError("expected a malformed datagram to be rejected");
+        } catch (IllegalArgumentException expected) {
+            // rejected
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.charteto;
+
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.config.validate.ValidationException;
+import io.micrometer.core.ipc.http.HttpUrlConnectionSender;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChartetoAgentTest {
+
+    private final List<ChartetoMeterRegistry> registries = new ArrayList<>();
+    private ChartetoIngestionStub stub;
+    private ChartetoAgent agent;
+
+    @Before
+    public void setUp() throws IOException {
+        stub = new ChartetoIngestionStub("test-api-key");
+        agent = new ChartetoAgent(new TestChartetoConfig(stub.uri()) {
+            @Override
+            public String agentAddress() {
+                return "localhost:0";
+            }
+        }, Clock.SYSTEM, new HttpUrlConnectionSender(Duration.ofSeconds(1), Duration.ofSeconds(2)));
+    }
+
+    @After
+    public void tearDown() {
+        registries.forEach(ChartetoMeterRegistry::close);
+        agent.close();
+        stub.close();
+    }
+
+    private ChartetoMeterRegistry registry() throws IOException {
+        String address = "localhost:" + agent.address().getPort();
+        ChartetoMeterRegistry registry = new ChartetoMeterRegistry(new TestChartetoConfig(stub.uri(), false) {
+            @Override
+            public ChartetoTransport transport() {
+                return ChartetoTransport.AGENT;
+            }
+
+            @Override
+            public String agentAddress() {
+                return address;
+            }
+        }, Clock.SYSTEM);
+        registries.add(registry);
+        return registry;
+    }
+
+    private void awaitDatagrams(int count) throws InterruptedException {
+        Counter received = agent.registry().get("charteto.agent.received").counter();
+        for (int i = 0; i < 500 && received.count() < count; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, received.count(), 0);
+    }
+
+    private Object value(String name, String... tag) {
+        ChartetoIngestionStub.Batch batch = stub.latestBatch();
+        Map<String, Object> headerTags = Json.object(batch.body.getOrDefault("tags", new HashMap<>()));
+        for (Object metric : batch.metrics()) {
+            Map<String, Object> m = Json.object(metric);
+            Map<String, Object> tags = new HashMap<>(headerTags);
+            tags.putAll(Json.object(m.getOrDefault("tags", new HashMap<>())));
+            if (name.equals(m.get("name")) && (tag.length == 0 || tag[1].equals(tags.get(tag[0])))) {
+                return Json.array(Json.array(m.get("points")).get(0)).get(1);
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void countersFromSeveralProcessesAreSummedAndForwarded() throws Exception {
+        ChartetoMeterRegistry first = registry();
+        ChartetoMeterRegistry second = registry();
+        first.counter("http.requests", "route", "/a").increment(3);
+        second.counter("http.requests", "route", "/a").increment(4);
+        second.counter("http.requests", "route", "/b").increment();
+        first.gauge("queue.size", new AtomicInteger(11));
+        AtomicInteger queue = second.gauge("queue.size", new AtomicInteger(17));
+
+        first.publish();
+        second.publish();
+        awaitDatagrams(2);
+        agent.forward();
+
+        assertEquals(1, stub.batches().size());
+        assertEquals(7.0, value("http.requests", "route", "/a"));
+        assertEquals(1.0, value("http.requests", "route", "/b"));
+        assertEquals("gauges keep the latest value", (double) queue.get(), value("queue.size"));
+    }
+
+    @Test
+    public void processesSendDeltasSoTotalsStayCumulative() throws Exception {
+        ChartetoMeterRegistry registry = registry();
+        Counter counter = registry.counter("jobs", "kind", "batch");
+        counter.increment(5);
+        registry.publish();
+        awaitDatagrams(1);
+        agent.forward();
+        assertEquals(5.0, value("jobs", "kind", "batch"));
+
+        counter.increment(2);
+        registry.publish();
+        awaitDatagrams(2);
+        agent.forward();
+        assertEquals(7.0, value("jobs", "kind", "batch"));
+    }
+
+    @Test
+    public void malformedDatagramsAreCountedAndIgnored() throws Exception {
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            channel.send(ByteBuffer.wrap(new byte[]{42, 1, 2}), new InetSocketAddress("localhost", agent.address().getPort()));
+        }
+        Counter malformed = agent.registry().get("charteto.agent.malformed").counter();
+        for (int i = 0; i < 500 && malformed.count() < 1; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, malformed.count(), 0);
+
+        agent.forward();
+        assertNull(stub.latestBatch());
+    }
+
+    @Test(expected = ValidationException.class)
+    public void agentWithoutAnApiKeyFailsToStart() throws IOException {
+        ChartetoConfig config = key -> "charteto.agentAddress".equals(key) ? "localhost:0" : null;
+        new ChartetoAgent(config, Clock.SYSTEM, new HttpUrlConnectionSender(Duration.ofSeconds(1), Duration.ofSeconds(2))).close();
+    }
+}
@@ -5,11 +5,14 @@ import io.micrometer.core.instrument.config.validate.ValidationException;
 import org.junit.Test;
 
 import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -135,4 +138,143 @@ public class ChartetoConfigTest {
             assertTrue(e.getMessage().contains("valid URL"));
         }
     }
+
+    @Test
+    public void urisDefaultToUri() {
+        Map<String, String> props = new HashMap<>();
+        props.put("charteto.apiKey", "test-key");
+        props.put("charteto.uri", "https://example.com");
+
+        ChartetoConfig config = from(props);
+        assertEquals(Collections.singletonList("https://example.com"), config.uris());
+    }
+
+    @Test
+    public void customUrisAreParsed() {
+        Map<String, String> props = new HashMap<>();
+        props.put("charteto.apiKey", "test-key");
+        props.put("charteto.uris", "https://eu.example.com, https://us.example.com");
+
+        ChartetoConfig config = from(props);
+        assertEquals(Arrays.asList("https://eu.example.com", "https://us.example.com"), config.uris());
+    }
+
+    @Test
+    public void invalidUrisFailValidation() {
+        Map<String, String> props = new HashMap<>();
+        props.put("charteto.apiKey", "test-key");
+        props.put("charteto.uris", "https://eu.example.com,not-a-url");
+
+        ChartetoConfig config = from(props);
+
+        try {
+            config.uris();
+            fail("Expected ValidationException");
+        } catch (ValidationException e) {
+            assertTrue(e.getMessage().contains("charteto.uris"));
+        }
+        assertFalse(config.validate().isValid());
+    }
+
+    @Test
+    public void defaultRoutingIsReplicate() {
+        assertEquals(ChartetoRouting.REPLICATE, ChartetoConfig.DEFAULT.routing());
+    }
+
+    @Test
+    public void customRoutingIsParsed() {
+        Map<String, String> props = new HashMap<>();
+        props.put("charteto.routing", "consistent_hash");
+
+        ChartetoConfig config = from(props);
+        assertEquals(ChartetoRouting.CONSISTENT_HASH, config.routing());
+    }
+
+    @Test
+    public void rateLimitsAreDisabledByDefault() {
+        ChartetoConfig config = ChartetoConfig.DEFAULT;
+        assertEquals(0, config.maxRequestsPerSecond());
+        assertEquals(0, config.maxBytesPerSecond());
+        assertTrue(config.priorityMeters().isEmpty());
+        assertEquals(100, config.maxDeferredBatches());
+    }
+
+    @Test
+    public void rateLimitsAndPriorityMetersAreParsed() {
+        Map<String, String> props = new HashMap<>();
+        props.put("charteto.maxRequestsPerSecond", "20");
+        props.put("charteto.maxBytesPerSecond", "1048576");
+        props.put("charteto.priorityMeters", "http.server.*, jvm.memory.used,");
+
+        ChartetoConfig config = from(props);
+        assertEquals(20, config.maxRequestsPerSecond());
+        assertEquals(1048576, config.maxBytesPerSecond());
+        assertEquals(Arrays.asList("http.server.*", "jvm.memory.used"), config.priorityMeters());
+    }
+
+    @Test
+    public void gaugeSamplingDefaultsAndOverrides() {
+        assertEquals(Duration.ofMillis(100), ChartetoConfig.DEFAULT.gaugeSamplingBudget());
+        assertEquals(2, ChartetoConfig.DEFAULT.gaugeSamplingThreads());
+
+        Map<String, String> props = new HashMap<>();
+        props.put("charteto.gaugeSamplingBudget", "250ms");
+        props.put("charteto.gaugeSamplingThreads", "4");
+
+        ChartetoConfig config = from(props);
+        assertEquals(Duration.ofMillis(250), config.gaugeSamplingBudget());
+        assertEquals(4, config.gaugeSamplingThreads());
+    }
+
+    @Test
+    public void nonFiniteValuesAreDroppedUnlessConfigured() {
+        assertEquals(ChartetoNonFiniteValues.DROP, ChartetoConfig.DEFAULT.nonFiniteValues());
+
+        Map<String, String> props = new HashMap<>();
+        props.put("charteto.nonFiniteValues", "null");
+
+        assertEquals(ChartetoNonFiniteValues.NULL, from(props).nonFiniteValues());
+    }
+
+    @Test
+    public void publishOffsetKeyDefaultsToHostName() {
+        assertNull(ChartetoConfig.DEFAULT.publishOffsetKey());
+
+        Map<String, String> props = new HashMap<>();
+        props.put("charteto.publishOffsetKey", "pod-7");
+
+        assertEquals("pod-7", from(props).publishOffsetKey());
+    }
+
+    @Test
+    public void agentTransportNeedsNoApiKey() {
+        assertEquals(ChartetoTransport.HTTP, ChartetoConfig.DEFAULT.transport());
+        assertEquals("localhost:8127", ChartetoConfig.DEFAULT.agentAddress());
+
+        Map<String, String> props = new HashMap<>();
+        props.put("charteto.transport", "agent");
+        props.put("charteto.agentAddress", "127.0.0.1:9000");
+
+        ChartetoConfig config = from(props);
+        assertEquals(ChartetoTransport.AGENT, config.transport());
+        assertEquals("127.0.0.1:9000", config.agentAddress());
+        assertTrue(config.validate().isValid());
+    }
+
+    @Test
+    public void invalidAgentAddressFailsValidation() {
+        Map<String, String> props = new HashMap<>();
+        props.put("charteto.transport", "agent");
+        props.put("charteto.agentAddress", "localhost");
+
+        ChartetoConfig config = from(props);
+
+        try {
+            config.agentAddress();
+            fail("Expected ValidationException");
+        } catch (ValidationException e) {
+            assertTrue(e.getMessage().contains("charteto.agentAddress"));
+        }
+        assertFalse(config.validate().isValid());
+    }
 }
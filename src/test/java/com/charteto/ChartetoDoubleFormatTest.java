@@ -0,0 +1,184 @@
+package com.charteto;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ChartetoDoubleFormatTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChartetoDoubleFormatTest.class);
+
+    // random values checked per test; the full count runs with the load tests
+    private static final int SAMPLES = Boolean.getBoolean("charteto.load") ? 200_000 : 20_000;
+
+    private static final double[] EDGE_CASES = {
+            0.0, -0.0, 1.0, -1.0, 0.1, 0.2, 0.3, 1.0 / 3, 2.0 / 3, 123.456, 1e-7, 1e-6, 9.999999999999999e-7,
+            1e20, 1e21, 1e22, 1e23, 0x1p53, 0x1p53 + 2, 0x1p53 - 1, 0x1p63, 0x1p64, Math.PI, Math.E,
+            Double.MIN_VALUE, 2 * Double.MIN_VALUE, 3 * Double.MIN_VALUE, Double.MIN_NORMAL,
+            Math.nextDown(Double.MIN_NORMAL), Double.MAX_VALUE, Math.nextDown(Double.MAX_VALUE),
+            2.2250738585072014E-308, 1.7976931348623157E308, 5e-324, 9007199254740993.0, 4.35, 0.01, 100.5
+    };
+
+    private static String format(double value) {
+        StringBuilder out = new StringBuilder();
+        ChartetoDoubleFormat.append(out, value);
+        return out.toString();
+    }
+
+    @Test
+    public void wholeValuesAreWrittenWithoutFraction() {
+        assertEquals("0", format(0.0));
+        assertEquals("-0", format(-0.0));
+        assertEquals("42", format(42.0));
+        assertEquals("-17", format(-17.0));
+        assertEquals("9007199254740991", format(0x1p53 - 1));
+        assertEquals("100000000000000000000", format(1e20));
+    }
+
+    @Test
+    public void layoutFollowsJavaScript() {
+        assertEquals("0.1", format(0.1));
+        assertEquals("123.456", format(123.456));
+        assertEquals("-2.5", format(-2.5));
+        assertEquals("0.000001", format(1e-6));
+        assertEquals("1.5e-7", format(1.5e-7));
+        assertEquals("1e21", format(1e21));
+        assertEquals("1.7976931348623157e308", format(Double.MAX_VALUE));
+        assertEquals("4.9e-324", format(Double.MIN_VALUE));
+        assertEquals("0.30000000000000004", format(0.1 + 0.2));
+    }
+
+    @Test
+    public void appendsToExistingContent() {
+        StringBuilder out = new StringBuilder("[1,");
+        ChartetoDoubleFormat.append(out, 0.25);
+        assertEquals("[1,0.25", out.toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nonFiniteValuesAreRejected() {
+        format(Double.NaN);
+    }
+
+    @Test
+    public void edgeCasesAreShortestAndRoundTrip() {
+        for (double value : EDGE_CASES) {
+            assertShortestRoundTrip(value);
+            assertShortestRoundTrip(-value);
+        }
+    }
+
+    @Test
+    public void randomBitPatternsAreShortestAndRoundTrip() {
+        Random random = new Random(0x5eed);
+        for (int i = 0; i < SAMPLES; i++) {
+            double value = Double.longBitsToDouble(random.nextLong());
+            if (Double.isFinite(value)) {
+                assertShortestRoundTrip(value);
+            }
+        }
+    }
+
+    @Test
+    public void randomDecimalsAreShortestAndRoundTrip() {
+        // the values meters actually produce: short decimals, rates, sub-millisecond durations
+        Random random = new Random(0xdec);
+        for (int i = 0; i < SAMPLES; i++) {
+            double value = random.nextInt(1_000_000) / Math.pow(10, random.nextInt(12));
+            assertShortestRoundTrip(value);
+            assertShortestRoundTrip(random.nextDouble() * Math.pow(10, random.nextInt(40) - 20));
+        }
+    }
+
+    @Test
+    public void noLongerThanDoubleToString() {
+        Random random = new Random(42);
+        for (int i = 0; i < SAMPLES; i++) {
+            double value = Double.longBitsToDouble(random.nextLong());
+            if (Double.isFinite(value)) {
+                assertTrue(value + " as " + format(value),
+                        significantDigits(format(value)) <= significantDigits(Double.toString(value)));
+            }
+        }
+    }
+
+    /**
+     * Compares with {@code StringBuilder.append(double)}, which is what the registry used before.
+     * A stand-in for a JMH benchmark, which the build doesn't include: it only logs. Runs with the load
+     * tests, i.e. with {@code -Dcharteto.load=true}.
+     */
+    @Test
+    public void throughputComparedToStringBuilder() {
+        Assume.assumeTrue("benchmarks run with -Dcharteto.load=true", Boolean.getBoolean("charteto.load"));
+        Random random = new Random(7);
+        double[] values = new double[100_000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i % 2 == 0 ? random.nextInt(100_000) : random.nextDouble() * 1000;
+        }
+
+        StringBuilder out = new StringBuilder(32 * values.length);
+        long charteto = Long.MAX_VALUE;
+        long builder = Long.MAX_VALUE;
+        for (int round = 0; round < 10; round++) {
+            out.setLength(0);
+            long start = System.nanoTime();
+            for (double value : values) {
+                ChartetoDoubleFormat.append(out, value);
+            }
+            charteto = Math.min(charteto, System.nanoTime() - start);
+
+            out.setLength(0);
+            start = System.nanoTime();
+            for (double value : values) {
+                out.append(value);
+            }
+            builder = Math.min(builder, System.nanoTime() - start);
+        }
+
+        logger.info(String.format("charteto double format: %.1f ns/value, StringBuilder.append(double): %.1f ns/value",
+                (double) charteto / values.length, (double) builder / values.length));
+        assertTrue(TimeUnit.NANOSECONDS.toSeconds(charteto) < 10);
+    }
+
+    private static void assertShortestRoundTrip(double value) {
+        String formatted = format(value);
+        if (Double.compare(Double.parseDouble(formatted), value) != 0) {
+            fail(value + " formatted as " + formatted + " doesn't round trip");
+        }
+        if (value == 0) {
+            return;
+        }
+
+        BigDecimal exact = new BigDecimal(value);
+        int digits = significantDigits(formatted);
+        // like Double.toString, the two smallest subnormals get a second digit, e.g. 4.9e-324 not 5e-324
+        if (digits > 1 && Math.abs(value) >= 3 * Double.MIN_VALUE) {
+            for (RoundingMode mode : new RoundingMode[]{RoundingMode.FLOOR, RoundingMode.CEILING}) {
+                if (exact.round(new MathContext(digits - 1, mode)).doubleValue() == value) {
+                    fail(value + " formatted as " + formatted + " isn't the shortest");
+                }
+            }
+        }
+
+        // among decimals of that length, the closest one, unless it doesn't round trip
+        BigDecimal closest = exact.round(new MathContext(digits, RoundingMode.HALF_EVEN));
+        if (closest.doubleValue() == value) {
+            assertEquals(value + " formatted as " + formatted, 0, closest.compareTo(new BigDecimal(formatted)));
+        }
+    }
+
+    private static int significantDigits(String formatted) {
+        return new BigDecimal(formatted).stripTrailingZeros().precision();
+    }
+}
@@ -0,0 +1,220 @@
+package com.charteto;
+
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.core.ipc.http.HttpUrlConnectionSender;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChartetoEndpointTest {
+
+    private static final String API_KEY = "test-api-key";
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final HttpUrlConnectionSender httpClient =
+            new HttpUrlConnectionSender(Duration.ofSeconds(1), Duration.ofMillis(300));
+    private ChartetoIngestionStub stub;
+    private ChartetoRateLimiter rateLimiter;
+    private ChartetoEndpoint endpoint;
+    private int batches;
+
+    @Before
+    public void setUp() throws IOException {
+        stub = new ChartetoIngestionStub(API_KEY);
+        rateLimiter = new ChartetoRateLimiter(Clock.SYSTEM, 100, 0);
+        endpoint = new ChartetoEndpoint(stub.uri(), registry, rateLimiter);
+    }
+
+    @After
+    public void tearDown() {
+        stub.close();
+    }
+
+    private ChartetoPayload payload(boolean compressed) {
+        // a fresh id each time, as the stub accepts a batch id only once
+        return ChartetoPayload.of("{\"batchId\":\"b" + (++batches) + "\",\"metrics\":[{\"name\":\"m\",\"points\":[[1,1.5]]}]}", 1, 1, compressed);
+    }
+
+    private ChartetoPayload payload(long cycle, int sequence, int batchCount) {
+        ChartetoBatchId batchId = new ChartetoBatchId("p", cycle, sequence, batchCount);
+        return ChartetoPayload.of("{\"batchId\":\"" + batchId + "\",\"batchCount\":" + batchCount
+                + ",\"metrics\":[{\"name\":\"m\",\"points\":[[1,1.5]]}]}", 1, 1, false, batchId);
+    }
+
+    private double requests(String outcome) {
+        return registry.get("charteto.publish.requests").tags("endpoint", stub.uri(), "outcome", outcome).counter().count();
+    }
+
+    @Test
+    public void sendsPlainAndCompressedPayloads() {
+        assertEquals(ChartetoEndpoint.Outcome.SENT, endpoint.send(httpClient, API_KEY, payload(false)));
+        assertEquals(ChartetoEndpoint.Outcome.SENT, endpoint.send(httpClient, API_KEY, payload(true)));
+
+        assertEquals(2, stub.batches().size());
+        assertFalse(stub.batches().get(0).compressed);
+        assertTrue(stub.batches().get(1).compressed);
+        assertEquals(2, stub.points());
+        assertEquals(2.0, requests("success"), 0.0);
+    }
+
+    @Test
+    public void wrongApiKeyIsAFailure() {
+        assertEquals(ChartetoEndpoint.Outcome.FAILED, endpoint.send(httpClient, "wrong", payload(false)));
+        assertEquals(1, stub.rejected());
+        assertEquals(1.0, requests("failure"), 0.0);
+    }
+
+    @Test
+    public void serverErrorIsAFailure() {
+        stub.failNext(503, 1);
+        assertEquals(ChartetoEndpoint.Outcome.FAILED, endpoint.send(httpClient, API_KEY, payload(false)));
+        assertEquals(ChartetoEndpoint.Outcome.SENT, endpoint.send(httpClient, API_KEY, payload(false)));
+    }
+
+    @Test
+    public void tooManyRequestsThrottlesTheEndpoint() {
+        stub.failNext(429, 1);
+        assertEquals(ChartetoEndpoint.Outcome.THROTTLED, endpoint.send(httpClient, API_KEY, payload(false)));
+        assertFalse(endpoint.acquire(payload(false), System.nanoTime()));
+    }
+
+    @Test
+    public void readTimeoutIsAFailure() {
+        stub.timeoutNext(1, Duration.ofSeconds(2));
+        assertEquals(ChartetoEndpoint.Outcome.FAILED, endpoint.send(httpClient, API_KEY, payload(false)));
+        assertEquals(1.0, requests("failure"), 0.0);
+    }
+
+    @Test
+    public void injectedLatencyIsObserved() {
+        stub.latency(Duration.ofMillis(100));
+        long start = System.nanoTime();
+        assertEquals(ChartetoEndpoint.Outcome.SENT, endpoint.send(httpClient, API_KEY, payload(false)));
+        assertTrue(System.nanoTime() - start >= Duration.ofMillis(100).toNanos());
+    }
+
+    @Test
+    public void gapsBetweenAcknowledgedBatchesAreCounted() {
+        endpoint.send(httpClient, API_KEY, payload(1, 0, 3));
+        endpoint.send(httpClient, API_KEY, payload(1, 1, 3));
+        assertNull(registry.find("charteto.publish.gaps").counter());
+
+        // the last batch of cycle 1 fails and the first of cycle 2 is held back
+        stub.failNext(503, 1);
+        endpoint.send(httpClient, API_KEY, payload(1, 2, 3));
+        endpoint.send(httpClient, API_KEY, payload(2, 1, 2));
+        assertEquals(2.0, registry.get("charteto.publish.gaps").counter().count(), 0.0);
+
+        // a late batch neither counts as a gap nor moves the cursor back
+        endpoint.send(httpClient, API_KEY, payload(2, 0, 2));
+        endpoint.send(httpClient, API_KEY, payload(3, 0, 1));
+        assertEquals(2.0, registry.get("charteto.publish.gaps").counter().count(), 0.0);
+        assertEquals(1, stub.missingBatches());
+    }
+
+    @Test
+    public void deferredBatchesDeliveredLateAreNotGaps() {
+        endpoint.send(httpClient, API_KEY, payload(1, 0, 2));
+        endpoint.deferred(new ChartetoBatchId("p", 1, 1, 2));
+        endpoint.deferred(new ChartetoBatchId("p", 2, 0, 2));
+        endpoint.send(httpClient, API_KEY, payload(2, 1, 2));
+        endpoint.send(httpClient, API_KEY, payload(1, 1, 2));
+        endpoint.send(httpClient, API_KEY, payload(2, 0, 2));
+        endpoint.send(httpClient, API_KEY, payload(3, 0, 1));
+        assertNull(registry.find("charteto.publish.gaps").counter());
+    }
+
+    @Test
+    public void deferredBatchesAreGapsOnceGivenUp() {
+        endpoint.send(httpClient, API_KEY, payload(1, 0, 3));
+        endpoint.deferred(new ChartetoBatchId("p", 1, 1, 3));
+        endpoint.deferred(new ChartetoBatchId("p", 1, 2, 3));
+        endpoint.send(httpClient, API_KEY, payload(2, 0, 1));
+        assertNull(registry.find("charteto.publish.gaps").counter());
+
+        // one is dropped, the other fails when it's finally sent
+        endpoint.lost(new ChartetoBatchId("p", 1, 1, 3));
+        stub.failNext(503, 1);
+        endpoint.send(httpClient, API_KEY, payload(1, 2, 3));
+        assertEquals(2.0, registry.get("charteto.publish.gaps").counter().count(), 0.0);
+
+        // and neither counts again
+        endpoint.send(httpClient, API_KEY, payload(3, 0, 1));
+        assertEquals(2.0, registry.get("charteto.publish.gaps").counter().count(), 0.0);
+    }
+
+    @Test
+    public void retriedBatchIsAcknowledgedButAcceptedOnce() {
+        assertEquals(ChartetoEndpoint.Outcome.SENT, endpoint.send(httpClient, API_KEY, payload(1, 0, 1)));
+        assertEquals(ChartetoEndpoint.Outcome.SENT, endpoint.send(httpClient, API_KEY, payload(1, 0, 1)));
+        assertEquals(1, stub.batches().size());
+        assertEquals(1, stub.duplicateBatchIds());
+    }
+
+    @Test
+    public void metadataIsSentIncrementallyAndInFullAfterAFailedSend() {
+        ChartetoDescriptors descriptors = new ChartetoDescriptors("src");
+        ChartetoSeries a = new ChartetoSeries("a", "COUNT", "request", "Requests served", Collections.emptyList());
+        ChartetoSeries b = new ChartetoSeries("b", "GAUGE", null, Collections.emptyList());
+        int[] ids = descriptors.ids(Arrays.asList(a, b));
+        assertTrue(endpoint.syncMetadata(httpClient, API_KEY, descriptors, 100, false, System.nanoTime()));
+        assertEquals("Requests served", stub.descriptor("src", ids[0]).get("description"));
+
+        // nothing new, nothing sent
+        assertTrue(endpoint.syncMetadata(httpClient, API_KEY, descriptors, 100, false, System.nanoTime()));
+        assertEquals(1, stub.metadataRequests().size());
+
+        ChartetoSeries c = new ChartetoSeries("c", "GAUGE", null, Collections.emptyList());
+        assertArrayEquals(ids, descriptors.ids(Arrays.asList(a, b)));
+        descriptors.ids(Collections.singletonList(c));
+        assertTrue(endpoint.syncMetadata(httpClient, API_KEY, descriptors, 100, true, System.nanoTime()));
+        Map<String, Object> added = stub.metadataRequests().get(1);
+        assertEquals(false, added.get("full"));
+        assertEquals(1, Json.array(added.get("descriptors")).size());
+
+        stub.failNext(503, 1);
+        assertEquals(ChartetoEndpoint.Outcome.FAILED, endpoint.send(httpClient, API_KEY, payload(false)));
+        assertTrue(endpoint.syncMetadata(httpClient, API_KEY, descriptors, 100, false, System.nanoTime()));
+        Map<String, Object> resynced = stub.metadataRequests().get(2);
+        assertEquals(true, resynced.get("full"));
+        assertEquals(3, Json.array(resynced.get("descriptors")).size());
+    }
+
+    @Test
+    public void metadataIsSentAtMostABatchAtATime() {
+        ChartetoDescriptors descriptors = new ChartetoDescriptors("src");
+        List<ChartetoSeries> series = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            series.add(new ChartetoSeries("s" + i, "GAUGE", null, Collections.emptyList()));
+        }
+        int[] ids = descriptors.ids(series);
+
+        assertTrue(endpoint.syncMetadata(httpClient, API_KEY, descriptors, 2, false, System.nanoTime()));
+        List<Map<String, Object>> requests = stub.metadataRequests();
+        assertEquals(3, requests.size());
+        // the full set is replaced by the first request and added to by the others
+        for (int i = 0; i < requests.size(); i++) {
+            assertTrue(Json.array(requests.get(i).get("descriptors")).size() <= 2);
+            assertEquals(i == 0, requests.get(i).get("full"));
+        }
+        for (int id : ids) {
+            assertNotNull(stub.descriptor("src", id));
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.charteto;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MockClock;
+import io.micrometer.core.instrument.Timer;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ChartetoFootprintTest {
+
+    private final MockClock clock = new MockClock();
+    private ChartetoMeterRegistry registry;
+
+    @After
+    public void tearDown() {
+        if (registry != null) {
+            registry.close();
+        }
+    }
+
+    private ChartetoMeterRegistry registry(int meterMemoryBudget) {
+        registry = new ChartetoMeterRegistry(new TestChartetoConfig("http://localhost:1", false) {
+            @Override
+            public int meterMemoryBudget() {
+                return meterMemoryBudget;
+            }
+        }, clock);
+        return registry;
+    }
+
+    @Test
+    public void prefixesAreLeadingNameSegments() {
+        assertEquals("http.server", ChartetoFootprint.prefix("http.server.requests", 2));
+        assertEquals("http", ChartetoFootprint.prefix("http.server.requests", 1));
+        assertEquals("jvm", ChartetoFootprint.prefix("jvm", 2));
+    }
+
+    @Test
+    public void histogramsAndTagsAddToTheEstimate() {
+        ChartetoMeterRegistry registry = registry(0);
+        Timer plain = registry.timer("plain.timer");
+        Timer percentiles = Timer.builder("percentile.timer").publishPercentiles(0.5, 0.99).register(registry);
+        Counter untagged = registry.counter("requests");
+        Counter tagged = registry.counter("requests", "uri", "/api/v1/orders/{id}", "method", "GET");
+
+        assertTrue(ChartetoFootprint.estimate(percentiles, null) - ChartetoFootprint.estimate(plain, null)
+                >= ((ChartetoTimer) percentiles).histogram().footprint());
+        assertTrue(ChartetoFootprint.estimate(tagged, null) > ChartetoFootprint.estimate(untagged, null) + 40);
+    }
+
+    @Test
+    public void reportSumsByPrefixLargestFirst() {
+        ChartetoMeterRegistry registry = registry(0);
+        for (int i = 0; i < 20; i++) {
+            Timer.builder("http.server.requests").tag("uri", "/" + i).publishPercentiles(0.99).register(registry);
+        }
+        registry.counter("jvm.gc.pause");
+        registry.gauge("cache.size", Arrays.asList(new Object[1000]), List::size);
+
+        registry.publish();
+
+        Map<String, Long> report = registry.footprintByPrefix(2, 3);
+        assertEquals(Arrays.asList("http.server", "cache.size", "charteto.gauges"), new ArrayList<>(report.keySet()));
+        assertTrue(registry.footprint() >= report.values().stream().mapToLong(Long::longValue).sum());
+
+        assertEquals(registry.footprint(), registry.get("charteto.meters.footprint").gauge().value(), 0);
+        assertEquals(report.get("http.server"),
+                registry.get("charteto.meters.footprint.prefix").tag("prefix", "http.server").gauge().value(), 0);
+    }
+
+    @Test
+    public void idleMetersAreEvictedLargestFirstPastTheBudget() {
+        ChartetoMeterRegistry registry = registry(16 * 1024);
+        Counter busy = registry.counter("busy.counter");
+        AtomicInteger gaugeValue = registry.gauge("constant.gauge", new AtomicInteger(1));
+        for (int i = 0; i < 10; i++) {
+            Timer.builder("idle.timer").tag("i", Integer.toString(i)).publishPercentiles(0.99).register(registry);
+        }
+        registry.counter("idle.counter");
+
+        // the first publish sees what each meter did, the second which ones did nothing since
+        busy.increment();
+        registry.publish();
+        assertEquals(10, registry.find("idle.timer").timers().size());
+        busy.increment();
+        registry.publish();
+
+        assertTrue(registry.footprint() <= 16 * 1024);
+        assertTrue(registry.get("charteto.meters.evicted").counter().count() > 0);
+        assertTrue(registry.find("idle.timer").timers().size() < 10);
+        assertNotNull(registry.find("busy.counter").counter());
+        assertNotNull(registry.find("constant.gauge").gauge());
+        assertEquals(1, gaugeValue.get());
+    }
+
+    @Test
+    public void evictedMeterIsRegisteredAgainOnceRecordedTo() {
+        ChartetoMeterRegistry registry = registry(1);
+        Counter counter = registry.counter("idle.counter");
+        Timer timer = Timer.builder("idle.timer").publishPercentiles(0.99).register(registry);
+        registry.publish();
+        registry.publish();
+        assertNull(registry.find("idle.counter").counter());
+        assertNull(registry.find("idle.timer").timer());
+
+        counter.increment(3);
+        registry.publish();
+        assertSame(counter, registry.find("idle.counter").counter());
+        assertEquals(3, registry.get("idle.counter").counter().count(), 0);
+        assertNull(registry.find("idle.timer").timer());
+
+        // registering the id again takes the evicted meter back, percentile gauges and all
+        assertSame(timer, Timer.builder("idle.timer").publishPercentiles(0.99).register(registry));
+        assertNotNull(registry.find("idle.timer.percentile").gauge());
+    }
+
+    @Test
+    public void nothingIsEvictedWithoutABudget() {
+        ChartetoMeterRegistry registry = registry(0);
+        for (int i = 0; i < 10; i++) {
+            Timer.builder("idle.timer").tag("i", Integer.toString(i)).publishPercentiles(0.99).register(registry);
+        }
+        registry.publish();
+        registry.publish();
+        assertEquals(10, registry.find("idle.timer").timers().size());
+        assertEquals(0, registry.get("charteto.meters.evicted").counter().count(), 0);
+    }
+}
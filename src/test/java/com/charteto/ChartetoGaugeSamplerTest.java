@@ -0,0 +1,157 @@
+package com.charteto;
+
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.Gauge;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChartetoGaugeSamplerTest {
+
+    private ChartetoMeterRegistry registry;
+
+    @Before
+    public void setUp() {
+        registry = new ChartetoMeterRegistry(new TestChartetoConfig("http://localhost:1", false) {
+            @Override
+            public Duration gaugeSamplingBudget() {
+                return Duration.ofMillis(50);
+            }
+        }, Clock.SYSTEM);
+    }
+
+    @After
+    public void tearDown() {
+        registry.close();
+    }
+
+    private static double sleepThenGet(AtomicInteger value, long millis) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return value.get();
+    }
+
+    @Test
+    public void fastGaugesAreSampledInline() {
+        AtomicInteger value = registry.gauge("fast.gauge", new AtomicInteger(1));
+        Gauge gauge = registry.get("fast.gauge").gauge();
+
+        value.set(2);
+        assertEquals(2.0, gauge.value(), 0.0);
+        assertFalse(((ChartetoGauge<?>) gauge).isSlow());
+    }
+
+    @Test
+    public void slowGaugesPublishTheirCachedValue() {
+        AtomicInteger value = new AtomicInteger(1);
+        Gauge gauge = Gauge.builder("slow.gauge", value, v -> sleepThenGet(v, 100)).register(registry);
+
+        assertEquals(1.0, gauge.value(), 0.0);
+        assertTrue(((ChartetoGauge<?>) gauge).isSlow());
+
+        // cached: no stall and no new value until the sampler refreshes it
+        value.set(2);
+        long start = System.nanoTime();
+        assertEquals(1.0, gauge.value(), 0.0);
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void hangingGaugeDoesNotStallSampling() throws InterruptedException {
+        AtomicInteger value = new AtomicInteger(1);
+        Gauge gauge = Gauge.builder("hanging.gauge", value, v -> sleepThenGet(v, 300)).register(registry);
+        gauge.value();
+        value.set(2);
+
+        long start = System.nanoTime();
+        registry.publish();
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(250));
+        assertEquals(1.0, registry.get("charteto.gauges.timeouts").counter().count(), 0.0);
+        assertEquals(1.0, registry.get("charteto.gauges.slow").gauge().value(), 0.0);
+
+        // the refresh completes in the background
+        TimeUnit.MILLISECONDS.sleep(400);
+        assertEquals(2.0, gauge.value(), 0.0);
+    }
+
+    @Test
+    public void gaugeHangingOnItsFirstCallDoesNotStallThePublish() throws InterruptedException {
+        AtomicInteger value = new AtomicInteger(1);
+        Gauge gauge = Gauge.builder("hanging.first.gauge", value, v -> sleepThenGet(v, 300)).register(registry);
+        AtomicInteger fast = registry.gauge("fast.first.gauge", new AtomicInteger(7));
+
+        long start = System.nanoTime();
+        registry.publish();
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(250));
+        assertTrue(((ChartetoGauge<?>) gauge).isSlow());
+        assertEquals(1.0, registry.get("charteto.gauges.timeouts").counter().count(), 0.0);
+
+        // the gauge sampled in time stays inline
+        fast.set(8);
+        assertEquals(8.0, registry.get("fast.first.gauge").gauge().value(), 0.0);
+        assertFalse(((ChartetoGauge<?>) registry.get("fast.first.gauge").gauge()).isSlow());
+
+        TimeUnit.MILLISECONDS.sleep(400);
+        assertEquals(1.0, gauge.value(), 0.0);
+    }
+
+    @Test
+    public void gaugeThatStartsHangingDoesNotStallThePublish() {
+        AtomicInteger value = new AtomicInteger(1);
+        AtomicInteger delay = new AtomicInteger();
+        Gauge gauge = Gauge.builder("fast.then.hanging.gauge", value, v -> sleepThenGet(v, delay.get())).register(registry);
+        registry.publish();
+        assertFalse(((ChartetoGauge<?>) gauge).isSlow());
+
+        delay.set(300);
+        value.set(2);
+        long start = System.nanoTime();
+        registry.publish();
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(250));
+        assertTrue(((ChartetoGauge<?>) gauge).isSlow());
+        assertEquals(1.0, gauge.measure().iterator().next().getValue(), 0.0);
+    }
+
+    @Test
+    public void slowGaugesAreRefreshedInParallel() {
+        AtomicInteger value = new AtomicInteger(1);
+        Gauge first = Gauge.builder("slow.gauge.1", value, v -> sleepThenGet(v, 60)).register(registry);
+        Gauge second = Gauge.builder("slow.gauge.2", value, v -> sleepThenGet(v, 60)).register(registry);
+        first.value();
+        second.value();
+        value.set(2);
+
+        registry.publish();
+
+        assertEquals(2.0, first.value(), 0.0);
+        assertEquals(2.0, second.value(), 0.0);
+        assertTrue(registry.get("charteto.gauges.sampling").timer().count() >= 2);
+    }
+
+    @Test
+    public void gaugesWithCollectedReferentsAreRemoved() throws InterruptedException {
+        registry.gauge("collected.gauge", new AtomicInteger(1));
+        ChartetoGauge<?> gauge = (ChartetoGauge<?>) registry.get("collected.gauge").gauge();
+        for (int i = 0; i < 50 && !gauge.isReferentCollected(); i++) {
+            System.gc();
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+
+        registry.publish();
+
+        assertNull(registry.find("collected.gauge").gauge());
+        assertEquals(1.0, registry.get("charteto.gauges.removed").counter().count(), 0.0);
+    }
+}
@@ -0,0 +1,167 @@
+package com.charteto;
+
+import io.micrometer.core.instrument.MockClock;
+import io.micrometer.core.instrument.distribution.DistributionStatisticConfig;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChartetoHistogramTest {
+
+    private static final Duration STEP = Duration.ofMinutes(1);
+
+    private final MockClock clock = new MockClock();
+
+    private DistributionStatisticConfig timerConfig(int precision, double... percentiles) {
+        return DistributionStatisticConfig.builder()
+                .percentiles(percentiles)
+                .percentilePrecision(precision)
+                .minimumExpectedValue((double) TimeUnit.MILLISECONDS.toNanos(1))
+                .maximumExpectedValue((double) TimeUnit.SECONDS.toNanos(30))
+                .expiry(STEP)
+                .bufferLength(3)
+                .build();
+    }
+
+    @Test
+    public void precisionBitsFollowSignificantDigits() {
+        assertEquals(4, ChartetoHistogram.precisionBits(1));
+        assertEquals(7, ChartetoHistogram.precisionBits(2));
+        assertEquals(10, ChartetoHistogram.precisionBits(3));
+        assertEquals(4, ChartetoHistogram.precisionBits(null));
+    }
+
+    @Test
+    public void bucketMidpointsAreWithinErrorBound() {
+        for (int precision = 1; precision <= 3; precision++) {
+            ChartetoHistogram histogram = new ChartetoHistogram(clock, timerConfig(precision, 0.5), STEP);
+            double bound = 1.0 / (1 << (ChartetoHistogram.precisionBits(precision) + 1));
+            Random random = new Random(precision);
+            for (int i = 0; i < 100_000; i++) {
+                double value = TimeUnit.MILLISECONDS.toNanos(1) + random.nextDouble() * TimeUnit.SECONDS.toNanos(29);
+                double midpoint = histogram.midpoint(histogram.index(value));
+                assertTrue(value + " -> " + midpoint, Math.abs(midpoint - value) / value <= bound);
+            }
+        }
+    }
+
+    @Test
+    public void percentilesBelowTheMinimumExpectedValueKeepTheErrorBound() {
+        ChartetoHistogram histogram = new ChartetoHistogram(clock, timerConfig(1, 0.5, 0.99), STEP);
+        double bound = 1.0 / (1 << (ChartetoHistogram.precisionBits(1) + 1));
+        for (int i = 0; i < 99; i++) {
+            histogram.recordLong(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+        histogram.recordLong(TimeUnit.MILLISECONDS.toNanos(10));
+
+        clock.add(STEP);
+        ValueAtPercentile[] values = snapshot(histogram).percentileValues();
+        assertEquals(100_000, values[0].value(), 100_000 * bound);
+        assertEquals(100_000, values[1].value(), 100_000 * bound);
+    }
+
+    @Test
+    public void percentilesReflectTheCompletedStep() {
+        ChartetoHistogram histogram = new ChartetoHistogram(clock, timerConfig(2, 0.5, 0.99), STEP);
+        for (int ms = 1; ms <= 1000; ms++) {
+            histogram.recordLong(TimeUnit.MILLISECONDS.toNanos(ms));
+        }
+
+        // nothing completed yet
+        assertEquals(0, snapshot(histogram).percentileValues()[0].value(), 0.0);
+
+        clock.add(STEP);
+        ValueAtPercentile[] values = snapshot(histogram).percentileValues();
+        assertEquals(500, values[0].value(TimeUnit.MILLISECONDS), 500 * 0.004);
+        assertEquals(990, values[1].value(TimeUnit.MILLISECONDS), 990 * 0.004);
+
+        // a quiet step rotates the data out
+        clock.add(STEP);
+        assertEquals(0, snapshot(histogram).percentileValues()[0].value(), 0.0);
+    }
+
+    @Test
+    public void percentilesAreWithinTheStatedErrorBoundOfExactValues() {
+        DistributionStatisticConfig config = timerConfig(1, 0.5, 0.9, 0.95, 0.99);
+        ChartetoHistogram histogram = new ChartetoHistogram(clock, config, STEP);
+        double bound = 1.0 / (1 << (ChartetoHistogram.precisionBits(1) + 1));
+
+        Random random = new Random(42);
+        long[] recorded = new long[50_000];
+        for (int i = 0; i < recorded.length; i++) {
+            recorded[i] = (long) (Math.exp(random.nextGaussian() + 3) * TimeUnit.MILLISECONDS.toNanos(1));
+            histogram.recordLong(recorded[i]);
+        }
+        Arrays.sort(recorded);
+        clock.add(STEP);
+        ValueAtPercentile[] actual = histogram.takeSnapshot(recorded.length, 0, recorded[recorded.length - 1]).percentileValues();
+
+        for (ValueAtPercentile value : actual) {
+            double exact = recorded[(int) Math.ceil(value.percentile() * recorded.length) - 1];
+            assertTrue(value.percentile() + ": " + value.value() + " vs " + exact,
+                    Math.abs(value.value() - exact) / exact <= bound);
+        }
+    }
+
+    @Test
+    public void serviceLevelObjectiveCountsAreExact() {
+        DistributionStatisticConfig config = DistributionStatisticConfig.builder()
+                .serviceLevelObjectives(10, 100, 1000)
+                .build()
+                .merge(DistributionStatisticConfig.DEFAULT);
+        ChartetoHistogram histogram = new ChartetoHistogram(clock, config, STEP);
+        for (int v = 1; v <= 2000; v++) {
+            histogram.recordDouble(v);
+        }
+        clock.add(STEP);
+
+        HistogramSnapshot snapshot = snapshot(histogram);
+        assertEquals(0, snapshot.percentileValues().length);
+        assertEquals(Arrays.asList(10.0, 100.0, 1000.0), Arrays.asList(
+                snapshot.histogramCounts()[0].count(), snapshot.histogramCounts()[1].count(),
+                snapshot.histogramCounts()[2].count()));
+    }
+
+    @Test
+    public void percentilesAreClampedToMax() {
+        ChartetoHistogram histogram = new ChartetoHistogram(clock, timerConfig(1, 1.0), STEP);
+        histogram.recordLong(TimeUnit.MILLISECONDS.toNanos(100));
+        clock.add(STEP);
+
+        // the bucket midpoint lies above 90 ms, the max the timer reports
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(90),
+                histogram.takeSnapshot(1, 0, TimeUnit.MILLISECONDS.toNanos(90)).percentileValues()[0].value(), 0.0);
+    }
+
+    @Test
+    public void outOfRangeValuesAreClampedToEdgeBuckets() {
+        ChartetoHistogram histogram = new ChartetoHistogram(clock, timerConfig(1, 0.5), STEP);
+        assertEquals(0, histogram.index(0));
+        assertEquals(0, histogram.index(-5));
+        assertEquals(0, histogram.index(Double.NaN));
+        assertEquals(histogram.index(Double.MAX_VALUE), histogram.index(TimeUnit.HOURS.toNanos(10)));
+    }
+
+    @Test
+    public void memoryIsFixedByPrecisionAndRange() {
+        ChartetoHistogram histogram = new ChartetoHistogram(clock, timerConfig(1, 0.99), STEP);
+        assertTrue(histogram.footprint() < 7 * 1024);
+
+        for (int i = 0; i < 1_000_000; i++) {
+            histogram.recordLong(i * 1000L);
+        }
+        assertTrue(histogram.footprint() < 7 * 1024);
+    }
+
+    private HistogramSnapshot snapshot(ChartetoHistogram histogram) {
+        return histogram.takeSnapshot(0, 0, Double.MAX_VALUE);
+    }
+}
@@ -0,0 +1,199 @@
+package com.charteto;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MockClock;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChartetoHistoryTest {
+
+    private static final Duration STEP = Duration.ofSeconds(10);
+    private static final long T0 = 1_700_000_000_000L;
+
+    private static ChartetoSeries series(String name, String... tags) {
+        return new ChartetoSeries(name, "GAUGE", null, Tags.of(tags).stream().collect(Collectors.toList()));
+    }
+
+    private static Map<String, String> tags(String... keyValues) {
+        return Tags.of(keyValues).stream().collect(Collectors.toMap(Tag::getKey, Tag::getValue));
+    }
+
+    @Test
+    public void chunksRoundTripTimesAndValues() {
+        Random random = new Random(42);
+        double[] values = new double[ChartetoHistoryChunk.MAX_POINTS];
+        long[] times = new long[values.length];
+        long time = 1_000;
+        for (int i = 0; i < values.length; i++) {
+            // mostly regular steps, with the occasional gap; steady, drifting, wild and special values
+            time += random.nextInt(10) == 0 ? 1 + random.nextInt(5000) : 1;
+            times[i] = time;
+            switch (i % 5) {
+                case 0: values[i] = 42; break;
+                case 1: values[i] = i * 0.1; break;
+                case 2: values[i] = random.nextDouble() * 1e12; break;
+                case 3: values[i] = i % 2 == 0 ? Double.NaN : -0.0; break;
+                default: values[i] = -random.nextGaussian(); break;
+            }
+        }
+
+        ChartetoHistoryChunk chunk = new ChartetoHistoryChunk();
+        for (int i = 0; i < values.length; i++) {
+            chunk.append(times[i], values[i]);
+        }
+        chunk.trim();
+
+        ChartetoHistoryChunk.Reader reader = chunk.reader();
+        for (int i = 0; i < values.length; i++) {
+            assertTrue(reader.next());
+            assertEquals(times[i], reader.time());
+            assertEquals(Double.doubleToRawLongBits(values[i]), Double.doubleToRawLongBits(reader.value()));
+        }
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void regularStepsAndSteadyValuesCompress() {
+        ChartetoHistoryChunk chunk = new ChartetoHistoryChunk();
+        for (int i = 0; i < ChartetoHistoryChunk.MAX_POINTS; i++) {
+            chunk.append(1_000 + i, i < 30 ? 1024 : 2048);
+        }
+        chunk.trim();
+        // 16 bytes for the first point, then two bits a point
+        int raw = 16 * ChartetoHistoryChunk.MAX_POINTS;
+        assertTrue(chunk.sizeInBytes() + " bytes", chunk.sizeInBytes() < raw / 4);
+    }
+
+    @Test
+    public void rangeSelectsByNameTagsAndTime() {
+        ChartetoHistory history = new ChartetoHistory(STEP, Duration.ofMinutes(10), 1 << 20);
+        ChartetoSeries get = series("http.requests", "method", "GET");
+        ChartetoSeries post = series("http.requests", "method", "POST");
+        ChartetoSeries other = series("jvm.threads");
+        for (int i = 0; i < 6; i++) {
+            long timestamp = T0 + i * STEP.toMillis();
+            history.record(get, timestamp, i);
+            history.record(post, timestamp, 10 * i);
+            history.record(other, timestamp, 1);
+        }
+
+        assertEquals(2, history.range("http.requests", Collections.emptyMap(), Instant.ofEpochMilli(T0),
+                Instant.ofEpochMilli(T0 + 60_000)).size());
+
+        List<ChartetoHistory.Series> gets = history.range("http.requests", tags("method", "GET"),
+                Instant.ofEpochMilli(T0 + 10_000), Instant.ofEpochMilli(T0 + 30_000));
+        assertEquals(1, gets.size());
+        assertEquals("GET", gets.get(0).tags().get("method"));
+        assertArrayEquals(new long[]{T0 + 10_000, T0 + 20_000, T0 + 30_000}, gets.get(0).timestamps());
+        assertArrayEquals(new double[]{1, 2, 3}, gets.get(0).values(), 0);
+    }
+
+    @Test
+    public void rateHandlesGapsAndResets() {
+        ChartetoHistory history = new ChartetoHistory(STEP, Duration.ofMinutes(10), 1 << 20);
+        ChartetoSeries counter = series("jobs");
+        history.record(counter, T0, 100);
+        history.record(counter, T0 + 10_000, 150);
+        // one missed step
+        history.record(counter, T0 + 30_000, 250);
+        // restarted
+        history.record(counter, T0 + 40_000, 20);
+
+        ChartetoHistory.Series rate = history.rate("jobs", Collections.emptyMap(), Instant.ofEpochMilli(T0),
+                Instant.ofEpochMilli(T0 + 40_000)).get(0);
+        assertArrayEquals(new long[]{T0 + 10_000, T0 + 30_000, T0 + 40_000}, rate.timestamps());
+        assertArrayEquals(new double[]{5, 5, 2}, rate.values(), 1e-9);
+    }
+
+    @Test
+    public void topKRanksByLatestValue() {
+        ChartetoHistory history = new ChartetoHistory(STEP, Duration.ofMinutes(10), 1 << 20);
+        history.record(series("queue.size", "queue", "a"), T0, 5);
+        history.record(series("queue.size", "queue", "b"), T0, 50);
+        history.record(series("queue.size", "queue", "c"), T0, Double.NaN);
+        history.record(series("queue.size", "queue", "d"), T0, 20);
+
+        List<ChartetoHistory.Series> top = ChartetoHistory.topK(history.range("queue.size", Collections.emptyMap(),
+                Instant.ofEpochMilli(T0), Instant.ofEpochMilli(T0)), 3);
+        assertEquals(Arrays.asList("b", "d", "a"), top.stream().map(s -> s.tags().get("queue")).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void pointsOlderThanTheRetentionAreDropped() {
+        ChartetoHistory history = new ChartetoHistory(STEP, Duration.ofMinutes(1), 1 << 20);
+        ChartetoSeries removed = series("removed.gauge");
+        history.record(removed, T0, 1);
+        ChartetoSeries kept = series("kept.gauge");
+        long steps = 3 * ChartetoHistoryChunk.MAX_POINTS;
+        for (int i = 0; i < steps; i++) {
+            history.record(kept, T0 + i * STEP.toMillis(), i);
+        }
+
+        Instant end = Instant.ofEpochMilli(T0 + steps * STEP.toMillis());
+        assertTrue(history.range("removed.gauge", Collections.emptyMap(), Instant.ofEpochMilli(T0), end).isEmpty());
+        long[] timestamps = history.range("kept.gauge", Collections.emptyMap(), Instant.ofEpochMilli(T0), end).get(0).timestamps();
+        // whole chunks are dropped, so up to a chunk more than the retention is kept
+        assertTrue(timestamps[0] >= end.toEpochMilli() - Duration.ofMinutes(1).toMillis()
+                - ChartetoHistoryChunk.MAX_POINTS * STEP.toMillis());
+    }
+
+    @Test
+    public void memoryIsCapped() {
+        long maxBytes = 64 * 1024;
+        ChartetoHistory history = new ChartetoHistory(STEP, Duration.ofDays(1), maxBytes);
+        Random random = new Random(7);
+        for (int step = 0; step < 500; step++) {
+            for (int s = 0; s < 50; s++) {
+                history.record(series("noisy.gauge", "series", Integer.toString(s)), T0 + step * STEP.toMillis(),
+                        random.nextDouble());
+            }
+            assertTrue(history.sizeInBytes() + " bytes", history.sizeInBytes() <= maxBytes);
+        }
+
+        // the newest points survive
+        Instant last = Instant.ofEpochMilli(T0 + 499 * STEP.toMillis());
+        assertEquals(50, history.range("noisy.gauge", Collections.emptyMap(), last, last).size());
+    }
+
+    @Test
+    public void registryRecordsWhatItPublishes() {
+        MockClock clock = new MockClock();
+        ChartetoMeterRegistry registry = new ChartetoMeterRegistry(new TestChartetoConfig("http://localhost:1", false) {
+            @Override
+            public Duration historyRetention() {
+                return Duration.ofMinutes(5);
+            }
+        }, clock);
+        Counter counter = registry.counter("orders", "region", "eu");
+
+        for (int i = 1; i <= 3; i++) {
+            counter.increment(i);
+            clock.add(Duration.ofMinutes(1));
+            registry.publish();
+        }
+
+        ChartetoHistory.Series orders = registry.history().range("orders", tags("region", "eu"),
+                Instant.EPOCH, Instant.ofEpochMilli(clock.wallTime())).get(0);
+        assertArrayEquals(new double[]{1, 3, 6}, orders.values(), 0);
+        assertEquals("COUNT", orders.type());
+        registry.close();
+
+        assertNull(new ChartetoMeterRegistry(new TestChartetoConfig("http://localhost:1", false), clock).history());
+    }
+}
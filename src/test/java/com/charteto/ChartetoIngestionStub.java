@@ -0,0 +1,400 @@
+package com.charteto;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Embedded stand-in for the Charteto ingestion API. Implements {@code /api/v1/metrics}: checks the
+ * {@code X-API-Key} header, gunzips when asked to, parses the body strictly and requires a
+ * {@code batchId}. A batch id seen before is acknowledged but not accepted again, and batches of the
+ * form {@code prefix-cycle-sequence} with a {@code batchCount} are checked for gaps. Also implements
+ * {@code /api/v1/metadata}, and rejects batches with series ids it has no descriptor for. Latency,
+ * error statuses and timeouts can be injected to exercise the send path.
+ */
+class ChartetoIngestionStub implements AutoCloseable {
+
+    private static final int TIMEOUT = -1;
+
+    private final String apiKey;
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    private final List<Batch> batches = Collections.synchronizedList(new ArrayList<>());
+    private final Set<String> batchIds = Collections.synchronizedSet(new HashSet<>());
+    // by prefix-cycle: the batch count, then whether each sequence number arrived
+    private final Map<String, boolean[]> cycles = new ConcurrentHashMap<>();
+    // by source, then series id
+    private final Map<String, Map<Integer, Map<String, Object>>> descriptors = new ConcurrentHashMap<>();
+    private final List<Map<String, Object>> metadataRequests = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger rejected = new AtomicInteger();
+    private final AtomicInteger duplicates = new AtomicInteger();
+    private final ConcurrentLinkedDeque<Integer> faults = new ConcurrentLinkedDeque<>();
+
+    private volatile Duration latency = Duration.ZERO;
+    private volatile Duration hang = Duration.ofSeconds(5);
+    private volatile boolean retainBodies = true;
+
+    ChartetoIngestionStub(String apiKey) throws IOException {
+        this.apiKey = apiKey;
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        this.server.createContext("/api/v1/metrics", this::handle);
+        this.server.createContext("/api/v1/metadata", this::handleMetadata);
+        this.server.setExecutor(executor);
+        this.server.start();
+    }
+
+    String uri() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Delays every response.
+     */
+    ChartetoIngestionStub latency(Duration latency) {
+        this.latency = latency;
+        return this;
+    }
+
+    /**
+     * Answers the next {@code times} requests with {@code status} (e.g. 429 or 503) without accepting them.
+     */
+    ChartetoIngestionStub failNext(int status, int times) {
+        for (int i = 0; i < times; i++) {
+            faults.add(status);
+        }
+        return this;
+    }
+
+    /**
+     * Holds the next {@code times} requests open for {@code hang} so the client's read timeout fires.
+     */
+    ChartetoIngestionStub timeoutNext(int times, Duration hang) {
+        this.hang = hang;
+        for (int i = 0; i < times; i++) {
+            faults.add(TIMEOUT);
+        }
+        return this;
+    }
+
+    /**
+     * Whether to keep parsed bodies of accepted batches. Load tests turn this off to keep the heap flat.
+     */
+    ChartetoIngestionStub retainBodies(boolean retainBodies) {
+        this.retainBodies = retainBodies;
+        return this;
+    }
+
+    List<Batch> batches() {
+        synchronized (batches) {
+            return new ArrayList<>(batches);
+        }
+    }
+
+    Batch latestBatch() {
+        synchronized (batches) {
+            return batches.isEmpty() ? null : batches.get(batches.size() - 1);
+        }
+    }
+
+    long points() {
+        return batches().stream().mapToLong(b -> b.points).sum();
+    }
+
+    long wireBytes() {
+        return batches().stream().mapToLong(b -> b.wireBytes).sum();
+    }
+
+    List<Map<String, Object>> metadataRequests() {
+        synchronized (metadataRequests) {
+            return new ArrayList<>(metadataRequests);
+        }
+    }
+
+    /**
+     * The descriptor a point's series id refers to, or null.
+     */
+    Map<String, Object> descriptor(String source, int id) {
+        return descriptors.getOrDefault(source, Collections.emptyMap()).get(id);
+    }
+
+    int rejected() {
+        return rejected.get();
+    }
+
+    int duplicateBatchIds() {
+        return duplicates.get();
+    }
+
+    /**
+     * Batches announced by a {@code batchCount} but never received, across all cycles seen.
+     */
+    long missingBatches() {
+        long missing = 0;
+        for (boolean[] received : cycles.values()) {
+            synchronized (received) {
+                for (boolean r : received) {
+                    missing += r ? 0 : 1;
+                }
+            }
+        }
+        return missing;
+    }
+
+    void reset() {
+        batches.clear();
+        batchIds.clear();
+        cycles.clear();
+        descriptors.clear();
+        metadataRequests.clear();
+        rejected.set(0);
+        duplicates.set(0);
+        faults.clear();
+        latency = Duration.ZERO;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            Request request = receive(exchange);
+            if (request == null) {
+                return;
+            }
+            Map<String, Object> body = request.body;
+
+            Object batchId = body.get("batchId");
+            if (!(batchId instanceof String) || ((String) batchId).isEmpty()) {
+                reject(exchange, 400, "missing batchId");
+                return;
+            }
+            if (!batchIds.add((String) batchId)) {
+                // a retry of a batch already accepted
+                duplicates.incrementAndGet();
+                respond(exchange, 200, "{\"batchId\":\"" + batchId + "\"}");
+                return;
+            }
+            if (!describedSeries(body)) {
+                batchIds.remove(batchId);
+                reject(exchange, 400, "unknown series id");
+                return;
+            }
+            sequenced((String) batchId, body.get("batchCount"));
+
+            batches.add(new Batch((String) batchId, retainBodies ? body : null, request.wireBytes, request.jsonBytes,
+                    request.compressed, countPoints(body)));
+            respond(exchange, 200, "{\"batchId\":\"" + batchId + "\"}");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleMetadata(HttpExchange exchange) throws IOException {
+        try {
+            Request request = receive(exchange);
+            if (request == null) {
+                return;
+            }
+            Object source = request.body.get("source");
+            if (!(source instanceof String) || !(request.body.get("descriptors") instanceof List)) {
+                reject(exchange, 400, "missing source or descriptors");
+                return;
+            }
+            metadataRequests.add(request.body);
+            Map<Integer, Map<String, Object>> known = descriptors.computeIfAbsent((String) source, s -> new ConcurrentHashMap<>());
+            if (Boolean.TRUE.equals(request.body.get("full"))) {
+                known.clear();
+            }
+            for (Object descriptor : Json.array(request.body.get("descriptors"))) {
+                Map<String, Object> d = Json.object(descriptor);
+                known.put(((Number) d.get("id")).intValue(), d);
+            }
+            respond(exchange, 200, "{}");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Reads and parses a request, or responds and returns null if it's faulted or invalid.
+     */
+    private Request receive(HttpExchange exchange) throws IOException {
+        byte[] wire = readAll(exchange.getRequestBody());
+        sleep(latency);
+
+        Integer fault = faults.poll();
+        if (fault != null) {
+            if (fault == TIMEOUT) {
+                sleep(hang);
+                respond(exchange, 503, "{\"error\":\"timed out\"}");
+            } else {
+                respond(exchange, fault, "{\"error\":\"injected\"}");
+            }
+            return null;
+        }
+
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            reject(exchange, 405, "method not allowed");
+            return null;
+        }
+        if (!apiKey.equals(exchange.getRequestHeaders().getFirst("X-API-Key"))) {
+            reject(exchange, 401, "invalid api key");
+            return null;
+        }
+
+        boolean compressed = "gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+        byte[] json = compressed ? readAll(new GZIPInputStream(new ByteArrayInputStream(wire))) : wire;
+
+        try {
+            return new Request(Json.object(Json.parse(new String(json, StandardCharsets.UTF_8))), wire.length,
+                    json.length, compressed);
+        } catch (RuntimeException e) {
+            reject(exchange, 400, "malformed payload: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private boolean describedSeries(Map<String, Object> body) {
+        Object metrics = body.get("metrics");
+        if (!(metrics instanceof List)) {
+            return true;
+        }
+        for (Object metric : Json.array(metrics)) {
+            Object id = Json.object(metric).get("id");
+            if (id != null && descriptor(String.valueOf(body.get("source")), ((Number) id).intValue()) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void sequenced(String batchId, Object batchCount) {
+        int sequenceStart = batchId.lastIndexOf('-');
+        if (sequenceStart < 0 || !(batchCount instanceof Number)) {
+            return;
+        }
+        int sequence;
+        try {
+            sequence = Integer.parseInt(batchId.substring(sequenceStart + 1));
+        } catch (NumberFormatException e) {
+            return;
+        }
+        boolean[] received = cycles.computeIfAbsent(batchId.substring(0, sequenceStart),
+                cycle -> new boolean[((Number) batchCount).intValue()]);
+        synchronized (received) {
+            if (sequence >= 0 && sequence < received.length) {
+                received[sequence] = true;
+            }
+        }
+    }
+
+    private static int countPoints(Map<String, Object> body) {
+        Object metrics = body.get("metrics");
+        if (!(metrics instanceof List)) {
+            return 0;
+        }
+        int points = 0;
+        for (Object metric : Json.array(metrics)) {
+            Object metricPoints = Json.object(metric).get("points");
+            points += metricPoints instanceof List ? Json.array(metricPoints).size() : 1;
+        }
+        return points;
+    }
+
+    private void reject(HttpExchange exchange, int status, String message) throws IOException {
+        rejected.incrementAndGet();
+        respond(exchange, status, "{\"error\":\"" + message.replace("\"", "'") + "\"}");
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        } catch (IOException ignored) {
+            // the client gave up, e.g. after its read timeout
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int n; (n = in.read(buffer)) != -1; ) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static void sleep(Duration duration) {
+        if (duration.isZero()) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(duration.toNanos());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Request {
+        private final Map<String, Object> body;
+        private final int wireBytes;
+        private final int jsonBytes;
+        private final boolean compressed;
+
+        Request(Map<String, Object> body, int wireBytes, int jsonBytes, boolean compressed) {
+            this.body = body;
+            this.wireBytes = wireBytes;
+            this.jsonBytes = jsonBytes;
+            this.compressed = compressed;
+        }
+    }
+
+    static final class Batch {
+        final String batchId;
+        final Map<String, Object> body;
+        final int wireBytes;
+        final int jsonBytes;
+        final boolean compressed;
+        final int points;
+
+        Batch(String batchId, Map<String, Object> body, int wireBytes, int jsonBytes, boolean compressed, int points) {
+            this.batchId = batchId;
+            this.body = body;
+            this.wireBytes = wireBytes;
+            this.jsonBytes = jsonBytes;
+            this.compressed = compressed;
+            this.points = points;
+        }
+
+        List<Object> metrics() {
+            return Json.array(body.get("metrics"));
+        }
+    }
+}
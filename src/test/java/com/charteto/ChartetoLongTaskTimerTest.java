@@ -0,0 +1,157 @@
+package com.charteto;
+
+import io.micrometer.core.instrument.LongTaskTimer;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MockClock;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.distribution.DistributionStatisticConfig;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChartetoLongTaskTimerTest {
+
+    private final MockClock clock = new MockClock();
+
+    private ChartetoLongTaskTimer timer(DistributionStatisticConfig config) {
+        return new ChartetoLongTaskTimer(new Meter.Id("tasks", Tags.empty(), null, null, Meter.Type.LONG_TASK_TIMER),
+                clock, TimeUnit.SECONDS, config.merge(DistributionStatisticConfig.DEFAULT));
+    }
+
+    @Test
+    public void durationAndActiveTasksAreExact() {
+        ChartetoLongTaskTimer timer = timer(DistributionStatisticConfig.NONE);
+        LongTaskTimer.Sample first = timer.start();
+        clock.add(Duration.ofMillis(1500));
+        LongTaskTimer.Sample second = timer.start();
+        clock.add(Duration.ofMillis(250));
+
+        assertEquals(2, timer.activeTasks());
+        assertEquals(1.75 + 0.25, timer.duration(TimeUnit.SECONDS), 1e-9);
+        assertEquals(1.75, first.duration(TimeUnit.SECONDS), 1e-9);
+
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(1750), first.stop());
+        assertEquals(1, timer.activeTasks());
+        assertEquals(0.25, timer.duration(TimeUnit.SECONDS), 1e-9);
+        assertEquals(-1, first.duration(TimeUnit.SECONDS), 0);
+
+        // stopping twice doesn't count the task twice
+        first.stop();
+        assertEquals(1, timer.activeTasks());
+        second.stop();
+        assertEquals(0, timer.activeTasks());
+        assertEquals(0, timer.duration(TimeUnit.SECONDS), 0);
+    }
+
+    @Test
+    public void maxIsResolvedToTheStartBucket() {
+        ChartetoLongTaskTimer timer = timer(DistributionStatisticConfig.NONE);
+        clock.add(Duration.ofMillis(300));
+        timer.start();
+        clock.add(Duration.ofSeconds(10));
+
+        double max = timer.max(TimeUnit.NANOSECONDS);
+        assertTrue(max >= TimeUnit.SECONDS.toNanos(10));
+        assertTrue(max <= TimeUnit.SECONDS.toNanos(10) + ChartetoLongTaskTimer.BUCKET_NANOS);
+    }
+
+    @Test
+    public void emptyBucketsAreRetired() {
+        ChartetoLongTaskTimer timer = timer(DistributionStatisticConfig.NONE);
+        List<LongTaskTimer.Sample> samples = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            samples.add(timer.start());
+            clock.add(Duration.ofSeconds(1));
+        }
+        assertEquals(100, timer.bucketCount());
+
+        samples.forEach(LongTaskTimer.Sample::stop);
+        timer.start();
+        assertEquals(1, timer.activeTasks());
+        assertEquals(1, timer.bucketCount());
+    }
+
+    @Test
+    public void snapshotCountsActiveTasksByDuration() {
+        ChartetoLongTaskTimer timer = timer(DistributionStatisticConfig.builder()
+                .percentiles(0.5, 0.9)
+                .serviceLevelObjectives((double) TimeUnit.SECONDS.toNanos(5), (double) TimeUnit.SECONDS.toNanos(30))
+                .build());
+        // ten tasks started 1s to 10s ago; one started 60s ago
+        timer.start();
+        clock.add(Duration.ofSeconds(50));
+        for (int i = 0; i < 10; i++) {
+            timer.start();
+            clock.add(Duration.ofSeconds(1));
+        }
+
+        HistogramSnapshot snapshot = timer.takeSnapshot();
+        assertEquals(11, snapshot.count());
+        assertEquals(60, snapshot.max(TimeUnit.SECONDS), 1);
+        assertEquals(60 + 55, snapshot.total(TimeUnit.SECONDS), 1e-9);
+
+        assertEquals(0.5, snapshot.percentileValues()[0].percentile(), 0);
+        assertEquals(6, snapshot.percentileValues()[0].value(TimeUnit.SECONDS), 1e-9);
+        assertEquals(10, snapshot.percentileValues()[1].value(TimeUnit.SECONDS), 1e-9);
+
+        assertEquals(2, snapshot.histogramCounts().length);
+        assertEquals(5, snapshot.histogramCounts()[0].count(), 0);
+        assertEquals(10, snapshot.histogramCounts()[1].count(), 0);
+    }
+
+    @Test
+    public void histogramGaugesAreRegisteredByTheRegistry() {
+        ChartetoMeterRegistry registry = new ChartetoMeterRegistry(new TestChartetoConfig("http://localhost:1", false), clock);
+        LongTaskTimer timer = LongTaskTimer.builder("polls")
+                .publishPercentiles(0.99)
+                .serviceLevelObjectives(Duration.ofSeconds(30))
+                .register(registry);
+        assertTrue(timer instanceof ChartetoLongTaskTimer);
+
+        timer.start();
+        clock.add(Duration.ofSeconds(10));
+
+        assertEquals(10, registry.get("polls.percentile").tag("phi", "0.99").gauge().value(), 1e-9);
+        assertEquals(1, registry.get("polls.histogram").tag("le", "30").gauge().value(), 0);
+        registry.close();
+    }
+
+    @Test
+    public void concurrentStartsAndStopsBalance() throws Exception {
+        ChartetoLongTaskTimer timer = timer(DistributionStatisticConfig.NONE);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 20_000; i++) {
+                        LongTaskTimer.Sample sample = timer.start();
+                        if (i % 1000 == 0) {
+                            clock.add(Duration.ofMillis(700));
+                            timer.activeTasks();
+                        }
+                        sample.stop();
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(0, timer.activeTasks());
+        assertEquals(0, timer.duration(TimeUnit.NANOSECONDS), 0);
+        assertTrue(timer.bucketCount() <= 1);
+    }
+}
@@ -6,6 +6,7 @@ import com.sun.net.httpserver.HttpServer;
 import io.micrometer.core.instrument.Clock;
 import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MockClock;
 import io.micrometer.core.instrument.Timer;
 import org.junit.After;
 import org.junit.Before;
@@ -17,11 +18,19 @@ import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 // A custom ChartetoConfig for testing that can point to our local server
@@ -90,20 +99,33 @@ class CapturingHttpHandler implements HttpHandler {
     private final List<String> receivedBodies = new ArrayList<>();
     private final List<String> receivedApiKeys = new ArrayList<>();
     private final List<String> receivedMethods = new ArrayList<>();
+    private int responseStatus = 200;
 
     @Override
     public void handle(HttpExchange exchange) throws IOException {
         receivedMethods.add(exchange.getRequestMethod());
         receivedApiKeys.add(exchange.getRequestHeaders().getFirst("X-API-Key"));
 
-        String body = convertStreamToString(exchange.getRequestBody());
+        InputStream requestBody = exchange.getRequestBody();
+        if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            requestBody = new GZIPInputStream(requestBody);
+        }
+        String body = convertStreamToString(requestBody);
         receivedBodies.add(body);
 
-        // Send a minimal successful response
-        exchange.sendResponseHeaders(200, -1);
+        // Send a minimal response
+        exchange.sendResponseHeaders(responseStatus, -1);
         exchange.close();
     }
 
+    public void respondWith(int status) {
+        this.responseStatus = status;
+    }
+
+    public List<String> getReceivedBodies() {
+        return receivedBodies;
+    }
+
     public String getLatestBody() {
         if (receivedBodies.isEmpty()) {
             return null;
@@ -144,6 +166,8 @@ public class ChartetoMeterRegistryTest {
     private CapturingHttpHandler handler;
     private ChartetoMeterRegistry registry;
     private TestChartetoConfig config;
+    // registries made by tests on top of the shared one
+    private final List<ChartetoMeterRegistry> extraRegistries = new ArrayList<>();
 
     @Before
     public void setUp() throws IOException {
@@ -170,6 +194,7 @@ public class ChartetoMeterRegistryTest {
         if (registry != null) {
             registry.close();
         }
+        extraRegistries.forEach(ChartetoMeterRegistry::close);
     }
 
     @Test
@@ -199,7 +224,7 @@ public class ChartetoMeterRegistryTest {
 
         // Verify counter metric content - type should be uppercase "COUNT"
         assertTrue("JSON should contain the counter name", receivedJson.contains("\"name\":\"my.test.counter\""));
-        assertTrue("JSON should contain counter value", receivedJson.contains("42.0"));
+        assertTrue("JSON should contain counter value", receivedJson.contains(",42]]"));
         assertTrue("JSON should contain counter type 'COUNT'", receivedJson.contains("\"type\":\"COUNT\""));
         assertTrue("JSON should contain the counter's custom tag", receivedJson.contains("\"tagKey\":\"tagValue\""));
 
@@ -212,7 +237,7 @@ public class ChartetoMeterRegistryTest {
 
         // Verify gauge metric content - type should be uppercase "GAUGE"
         assertTrue("JSON should contain the gauge name", receivedJson.contains("\"name\":\"my.test.gauge\""));
-        assertTrue("JSON should contain the gauge value", receivedJson.contains("123.0"));
+        assertTrue("JSON should contain the gauge value", receivedJson.contains(",123]]"));
         assertTrue("JSON should contain gauge type 'GAUGE'", receivedJson.contains("\"type\":\"GAUGE\""));
     }
 
@@ -232,4 +257,465 @@ public class ChartetoMeterRegistryTest {
         assertNotNull("Gauge should be found in the registry", foundGauge);
         assertEquals(1.0, foundGauge.value(), 0.0);
     }
-}
\ No newline at end of file
+
+    private HttpServer startServer(CapturingHttpHandler handler) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(0), 0);
+        server.createContext("/api/v1/metrics", handler);
+        server.start();
+        return server;
+    }
+
+    private ChartetoMeterRegistry multiEndpointRegistry(ChartetoRouting routing, boolean compressed, String... uris) {
+        ChartetoMeterRegistry multiEndpoint = new ChartetoMeterRegistry(new TestChartetoConfig(uris[0], false) {
+            @Override
+            public List<String> uris() {
+                return Arrays.asList(uris);
+            }
+
+            @Override
+            public ChartetoRouting routing() {
+                return routing;
+            }
+
+            @Override
+            public boolean compressed() {
+                return compressed;
+            }
+        }, Clock.SYSTEM);
+        extraRegistries.add(multiEndpoint);
+        return multiEndpoint;
+    }
+
+    @Test
+    public void replicatesSameBatchToEveryEndpoint() throws IOException {
+        CapturingHttpHandler drHandler = new CapturingHttpHandler();
+        HttpServer dr = startServer(drHandler);
+        try {
+            ChartetoMeterRegistry replicating = multiEndpointRegistry(ChartetoRouting.REPLICATE, true,
+                    "http://localhost:" + server.getAddress().getPort(),
+                    "http://localhost:" + dr.getAddress().getPort());
+            replicating.counter("replicated.counter").increment();
+
+            replicating.publish();
+
+            assertNotNull(handler.getLatestBody());
+            assertEquals(handler.getLatestBody(), drHandler.getLatestBody());
+            assertTrue(drHandler.getLatestBody().contains("\"name\":\"replicated.counter\""));
+        } finally {
+            dr.stop(0);
+        }
+    }
+
+    @Test
+    public void failingEndpointDoesNotAffectOthers() throws IOException {
+        CapturingHttpHandler drHandler = new CapturingHttpHandler();
+        drHandler.respondWith(503);
+        HttpServer dr = startServer(drHandler);
+        try {
+            String primaryUri = "http://localhost:" + server.getAddress().getPort();
+            String drUri = "http://localhost:" + dr.getAddress().getPort();
+            ChartetoMeterRegistry replicating = multiEndpointRegistry(ChartetoRouting.REPLICATE, false, drUri, primaryUri);
+            replicating.counter("replicated.counter").increment();
+
+            replicating.publish();
+
+            assertNotNull(handler.getLatestBody());
+            assertEquals(1.0, replicating.get("charteto.publish.requests")
+                    .tags("endpoint", drUri, "outcome", "failure").counter().count(), 0.0);
+            assertEquals(1.0, replicating.get("charteto.publish.requests")
+                    .tags("endpoint", primaryUri, "outcome", "success").counter().count(), 0.0);
+        } finally {
+            dr.stop(0);
+        }
+    }
+
+    @Test
+    public void consistentHashRoutesEachMeterToOneEndpoint() throws IOException {
+        CapturingHttpHandler shardHandler = new CapturingHttpHandler();
+        HttpServer shard = startServer(shardHandler);
+        try {
+            ChartetoMeterRegistry sharded = multiEndpointRegistry(ChartetoRouting.CONSISTENT_HASH, false,
+                    "http://localhost:" + server.getAddress().getPort(),
+                    "http://localhost:" + shard.getAddress().getPort());
+            for (int i = 0; i < 50; i++) {
+                sharded.counter("sharded.counter." + i).increment();
+            }
+
+            sharded.publish();
+
+            for (int i = 0; i < 50; i++) {
+                String name = "\"name\":\"sharded.counter." + i + "\"";
+                boolean onPrimary = handler.getReceivedBodies().stream().anyMatch(b -> b.contains(name));
+                boolean onShard = shardHandler.getReceivedBodies().stream().anyMatch(b -> b.contains(name));
+                assertTrue(onPrimary ^ onShard);
+            }
+            assertFalse(handler.getReceivedBodies().isEmpty());
+            assertFalse(shardHandler.getReceivedBodies().isEmpty());
+        } finally {
+            shard.stop(0);
+        }
+    }
+
+    @Test
+    public void overBudgetBatchesAreDeferredWithPriorityMetersFirst() {
+        AtomicInteger maxDeferredBatches = new AtomicInteger(1000);
+        ChartetoMeterRegistry limited = new ChartetoMeterRegistry(new TestChartetoConfig(config.uri(), false) {
+            @Override
+            public int batchSize() {
+                return 1;
+            }
+
+            @Override
+            public Duration step() {
+                return Duration.ofSeconds(1);
+            }
+
+            @Override
+            public int maxRequestsPerSecond() {
+                return 1;
+            }
+
+            @Override
+            public List<String> priorityMeters() {
+                return Arrays.asList("important.*");
+            }
+
+            @Override
+            public int maxDeferredBatches() {
+                return maxDeferredBatches.get();
+            }
+        }, Clock.SYSTEM);
+        limited.counter("a.counter").increment();
+        limited.counter("important.counter").increment();
+        limited.counter("z.counter").increment();
+
+        limited.publish();
+
+        assertEquals(1, handler.getReceivedBodies().size());
+        assertTrue(handler.getLatestBody().contains("\"name\":\"important.counter\""));
+        double deferred = limited.get("charteto.publish.deferred").counter().count();
+        assertTrue(deferred >= 2);
+        assertNull(limited.find("charteto.publish.dropped").counter());
+
+        // still over budget: carried over batches are deferred again and the oldest dropped
+        handler.clear();
+        maxDeferredBatches.set(1);
+        limited.publish();
+        assertTrue(limited.get("charteto.publish.dropped").counter().count() > 0);
+    }
+
+    @Test
+    public void deferredPointsAreCountedOnce() {
+        ChartetoMeterRegistry limited = new ChartetoMeterRegistry(new TestChartetoConfig(config.uri(), false) {
+            @Override
+            public int batchSize() {
+                return 1;
+            }
+
+            @Override
+            public Duration step() {
+                return Duration.ofSeconds(1);
+            }
+
+            @Override
+            public int maxRequestsPerSecond() {
+                return 1;
+            }
+        }, Clock.SYSTEM);
+        for (int i = 0; i < 5; i++) {
+            limited.counter("deferred.counter." + i).increment();
+        }
+
+        // the first publishes register the registry's own meters
+        limited.publish();
+        limited.publish();
+        double first = limited.get("charteto.publish.deferred").counter().count();
+        limited.publish();
+        double second = limited.get("charteto.publish.deferred").counter().count();
+        limited.publish();
+        double third = limited.get("charteto.publish.deferred").counter().count();
+
+        // every publish defers the same new points; those carried over again aren't counted again
+        assertTrue(first > 0);
+        assertEquals(second - first, third - second, 0);
+        limited.close();
+    }
+
+    @Test
+    public void closeDoesNotWaitForRateBudget() {
+        ChartetoMeterRegistry limited = new ChartetoMeterRegistry(new TestChartetoConfig(config.uri(), true) {
+            @Override
+            public int batchSize() {
+                return 1;
+            }
+
+            @Override
+            public int maxRequestsPerSecond() {
+                return 1;
+            }
+        }, Clock.SYSTEM);
+        for (int i = 0; i < 5; i++) {
+            limited.counter("closing.counter." + i).increment();
+        }
+
+        long start = System.nanoTime();
+        limited.close();
+        assertTrue(System.nanoTime() - start < Duration.ofSeconds(2).toNanos());
+        assertTrue(limited.get("charteto.publish.dropped").counter().count() > 0);
+    }
+
+    @Test
+    public void deferredIdOnlyBatchesAreDescribedAgainBeforeTheyreSent() throws Exception {
+        try (ChartetoIngestionStub stub = new ChartetoIngestionStub(config.apiKey())) {
+            ChartetoMeterRegistry synced = new ChartetoMeterRegistry(new TestChartetoConfig(stub.uri(), false) {
+                @Override
+                public boolean metadataSync() {
+                    return true;
+                }
+
+                @Override
+                public int batchSize() {
+                    return 1;
+                }
+
+                @Override
+                public Duration step() {
+                    return Duration.ofSeconds(1);
+                }
+            }, Clock.SYSTEM);
+            synced.counter("deferred.counter").increment();
+
+            // once the registry's own meters are registered and described, a publish sends only batches
+            for (int i = 0; i < 3; i++) {
+                synced.publish();
+            }
+            int metadataRequests = stub.metadataRequests().size();
+
+            // a 429 backs off for longer than the publish may wait, so the rest is deferred as ids only
+            stub.failNext(429, 1);
+            synced.publish();
+            assertEquals(metadataRequests, stub.metadataRequests().size());
+            assertTrue(synced.get("charteto.publish.deferred").counter().count() > 1);
+
+            // the backend loses its state, and the next send fails
+            Thread.sleep(ChartetoRateLimiter.MIN_BACKOFF_NANOS / 1_000_000 + 100);
+            stub.reset();
+            stub.failNext(503, 1);
+            synced.publish();
+
+            assertTrue(stub.batches().size() > 0);
+            assertEquals(0, stub.rejected());
+            synced.close();
+        }
+    }
+
+    @Test
+    public void percentileTimersUseChartetoHistogram() {
+        Timer timer = Timer.builder("percentile.timer")
+                .publishPercentiles(0.5, 0.99)
+                .register(registry);
+        assertTrue(timer instanceof ChartetoTimer);
+        timer.record(Duration.ofMillis(20));
+
+        assertNotNull(registry.find("percentile.timer.percentile").tag("phi", "0.99").gauge());
+        assertTrue(registry.timer("plain.timer") instanceof io.micrometer.core.instrument.cumulative.CumulativeTimer);
+        assertTrue(io.micrometer.core.instrument.DistributionSummary.builder("percentile.summary")
+                .serviceLevelObjectives(10)
+                .register(registry) instanceof ChartetoDistributionSummary);
+    }
+
+    @Test
+    public void commonAndHostTagsAreHoistedIntoBatchHeader() {
+        registry.config().commonTags("env", "prod", "instance", "pod-1");
+        registry.counter("hoisted.counter", "route", "/a").increment();
+        registry.counter("hoisted.counter", "route", "/b").increment();
+
+        registry.publish();
+
+        Map<String, Object> body = Json.object(Json.parse(handler.getLatestBody()));
+        assertEquals("pod-1", body.get("host"));
+        Map<String, Object> headerTags = Json.object(body.get("tags"));
+        assertEquals("prod", headerTags.get("env"));
+        assertEquals("pod-1", headerTags.get("instance"));
+
+        for (Object metric : Json.array(body.get("metrics"))) {
+            Map<String, Object> metricTags = Json.object(Json.object(metric).getOrDefault("tags", new HashMap<>()));
+            assertFalse(metricTags.containsKey("env"));
+            assertFalse(metricTags.containsKey("instance"));
+        }
+        assertTrue(handler.getLatestBody().contains("\"route\":\"/a\""));
+        assertTrue(handler.getLatestBody().contains("\"route\":\"/b\""));
+    }
+
+    @Test
+    public void batchIdsAreSequencedWithinEachPublish() {
+        ChartetoMeterRegistry batched = new ChartetoMeterRegistry(new TestChartetoConfig(config.uri(), false) {
+            @Override
+            public int batchSize() {
+                return 1;
+            }
+        }, Clock.SYSTEM);
+        batched.counter("first.counter").increment();
+        batched.counter("second.counter").increment();
+        batched.counter("third.counter").increment();
+
+        batched.publish();
+        batched.publish();
+        batched.close();
+
+        // internal meters registered by the first publish add batches of their own
+        Map<String, Object> first = Json.object(Json.parse(handler.getReceivedBodies().get(0)));
+        String prefix = ((String) first.get("batchId")).substring(0, ((String) first.get("batchId")).indexOf('-'));
+        int sequence = 0;
+        long cycle = 1;
+        for (String body : handler.getReceivedBodies()) {
+            Map<String, Object> batch = Json.object(Json.parse(body));
+            int batchCount = ((Number) batch.get("batchCount")).intValue();
+            assertEquals(prefix + "-" + cycle + "-" + sequence, batch.get("batchId"));
+            if (++sequence == batchCount) {
+                sequence = 0;
+                cycle++;
+            }
+        }
+        assertEquals("both publishes sent complete sequences", 3, cycle);
+    }
+
+    @Test
+    public void nonFiniteValuesAreDroppedByDefault() {
+        registry.gauge("finite.gauge", new AtomicInteger(7));
+        registry.gauge("nan.gauge", Arrays.asList("a"), list -> Double.NaN);
+        registry.gauge("infinite.gauge", Arrays.asList("b"), list -> Double.NEGATIVE_INFINITY);
+
+        registry.publish();
+
+        String json = handler.getLatestBody();
+        Json.parse(json); // rejects NaN and Infinity literals
+        assertTrue(json.contains("\"name\":\"finite.gauge\""));
+        assertFalse(json.contains("nan.gauge"));
+        assertFalse(json.contains("infinite.gauge"));
+        assertEquals(2, registry.get("charteto.publish.nonfinite").counter().count(), 0);
+    }
+
+    @Test
+    public void nonFiniteValuesCanBeMappedToNullOrZero() {
+        for (ChartetoNonFiniteValues policy : Arrays.asList(ChartetoNonFiniteValues.NULL, ChartetoNonFiniteValues.ZERO)) {
+            handler.clear();
+            ChartetoMeterRegistry mapping = new ChartetoMeterRegistry(new TestChartetoConfig(config.uri(), false) {
+                @Override
+                public ChartetoNonFiniteValues nonFiniteValues() {
+                    return policy;
+                }
+            }, Clock.SYSTEM);
+            mapping.gauge("nan.gauge", Arrays.asList("a"), list -> Double.NaN);
+
+            mapping.publish();
+            mapping.close();
+
+            Map<String, Object> nanGauge = Json.array(Json.object(Json.parse(handler.getLatestBody())).get("metrics")).stream()
+                    .map(Json::object)
+                    .filter(metric -> "nan.gauge".equals(metric.get("name")))
+                    .findFirst()
+                    .orElseThrow(AssertionError::new);
+            List<Object> point = Json.array(Json.array(nanGauge.get("points")).get(0));
+            assertEquals(policy == ChartetoNonFiniteValues.ZERO ? 0.0 : null, point.get(1));
+        }
+    }
+
+    @Test
+    public void publishOffsetIsDeterministicPerKeyAndSpreadOverTheStep() {
+        long stepMillis = Duration.ofMinutes(1).toMillis();
+        assertEquals(ChartetoMeterRegistry.publishOffset("pod-1", stepMillis),
+                ChartetoMeterRegistry.publishOffset("pod-1", stepMillis));
+
+        int[] deciles = new int[8];
+        for (int i = 0; i < 3000; i++) {
+            long offset = ChartetoMeterRegistry.publishOffset("pod-" + i, stepMillis);
+            assertTrue(offset >= 1 && offset <= stepMillis * 0.8);
+            deciles[(int) ((offset - 1) * 10 / stepMillis)]++;
+        }
+        for (int decile : deciles) {
+            assertTrue("offsets should spread over the first 80% of the step", decile > 300);
+        }
+    }
+
+    @Test
+    public void initialDelayWaitsForTheOffsetInTheCurrentOrNextStep() {
+        assertEquals(5_000, ChartetoMeterRegistry.initialDelay(120_000 + 10_000, 15_000, 60_000));
+        assertEquals(55_000, ChartetoMeterRegistry.initialDelay(120_000 + 20_000, 15_000, 60_000));
+        assertEquals(60_000, ChartetoMeterRegistry.initialDelay(120_000 + 15_000, 15_000, 60_000));
+    }
+
+    @Test
+    public void pointsAreStampedWithTheStartOfTheStep() {
+        MockClock clock = new MockClock();
+        clock.add(Duration.ofMinutes(3).plusSeconds(42));
+        ChartetoMeterRegistry aligned = new ChartetoMeterRegistry(new TestChartetoConfig(config.uri(), false), clock);
+        aligned.counter("aligned.counter").increment();
+
+        aligned.publish();
+        aligned.close();
+
+        for (Object metric : Json.array(Json.object(Json.parse(handler.getReceivedBodies().get(0))).get("metrics"))) {
+            List<Object> point = Json.array(Json.array(Json.object(metric).get("points")).get(0));
+            assertEquals((double) Duration.ofMinutes(3).toMillis(), point.get(0));
+        }
+    }
+
+    @Test
+    public void metadataIsSyncedOnceAndPointsCarryOnlyIds() throws IOException {
+        try (ChartetoIngestionStub stub = new ChartetoIngestionStub(config.apiKey())) {
+            ChartetoMeterRegistry synced = new ChartetoMeterRegistry(new TestChartetoConfig(stub.uri(), false) {
+                @Override
+                public boolean metadataSync() {
+                    return true;
+                }
+            }, Clock.SYSTEM);
+            Counter.builder("orders.placed")
+                    .description("Orders placed")
+                    .baseUnit("requests")
+                    .tag("region", "eu")
+                    .register(synced)
+                    .increment();
+
+            // internal meters first published by one publish are described by the next
+            for (int i = 0; i < 3; i++) {
+                synced.publish();
+            }
+            List<Map<String, Object>> metadata = stub.metadataRequests();
+            assertEquals(true, metadata.get(0).get("full"));
+            for (Map<String, Object> request : metadata.subList(1, metadata.size())) {
+                assertEquals(false, request.get("full"));
+            }
+
+            int described = 0;
+            for (ChartetoIngestionStub.Batch batch : stub.batches()) {
+                String source = (String) batch.body.get("source");
+                // the descriptors carry the tags
+                assertNull(batch.body.get("tags"));
+                assertNull(batch.body.get("host"));
+                for (Object metric : batch.metrics()) {
+                    Map<String, Object> point = Json.object(metric);
+                    assertEquals(new HashSet<>(Arrays.asList("id", "points")), point.keySet());
+                    Map<String, Object> descriptor = stub.descriptor(source, ((Number) point.get("id")).intValue());
+                    if ("Orders placed".equals(descriptor.get("description"))) {
+                        assertEquals("orders.placed", descriptor.get("name"));
+                        assertEquals("request", descriptor.get("unit"));
+                        assertEquals("eu", Json.object(descriptor.get("tags")).get("region"));
+                        described++;
+                    }
+                }
+            }
+            assertEquals(3, described);
+            assertEquals(0, stub.rejected());
+
+            // a failed send may mean a backend that lost its state, so everything is described again
+            int requests = stub.metadataRequests().size();
+            stub.failNext(503, 1);
+            synced.publish();
+            synced.publish();
+            assertEquals(true, stub.metadataRequests().get(requests).get("full"));
+            assertEquals(0, stub.rejected());
+            synced.close();
+        }
+    }
+}
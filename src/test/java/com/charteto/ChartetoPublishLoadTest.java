@@ -0,0 +1,126 @@
+package com.charteto;
+
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * End-to-end publish load test against {@link ChartetoIngestionStub}. Registers a large number of
+ * meters (100k by default, {@code -Dcharteto.load.meters=...}), publishes them 100 times
+ * ({@code -Dcharteto.load.iterations=...}) and logs publish throughput, median, p99 and max publish
+ * duration and bytes per point. Runs fully offline, but only when asked to, e.g.
+ * {@code mvn test -Dtest=ChartetoPublishLoadTest -Dcharteto.load=true}. Results are logged at INFO
+ * through slf4j, so they show with a binding on the test classpath.
+ */
+public class ChartetoPublishLoadTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChartetoPublishLoadTest.class);
+
+    private static final int METERS = Integer.getInteger("charteto.load.meters", 100_000);
+    private static final int ITERATIONS = Integer.getInteger("charteto.load.iterations", 100);
+
+    private ChartetoIngestionStub stub;
+
+    @Before
+    public void setUp() throws IOException {
+        Assume.assumeTrue("load tests run with -Dcharteto.load=true", Boolean.getBoolean("charteto.load"));
+        stub = new ChartetoIngestionStub("test-api-key").retainBodies(false);
+    }
+
+    @After
+    public void tearDown() {
+        if (stub != null) {
+            stub.close();
+        }
+    }
+
+    @Test
+    public void publishThroughput() {
+        run(false);
+    }
+
+    @Test
+    public void compressedPublishThroughput() {
+        run(true);
+    }
+
+    private void run(boolean compressed) {
+        ChartetoMeterRegistry registry = new ChartetoMeterRegistry(new TestChartetoConfig(stub.uri(), false) {
+            @Override
+            public int batchSize() {
+                return 10_000;
+            }
+
+            @Override
+            public Duration readTimeout() {
+                return Duration.ofSeconds(30);
+            }
+
+            @Override
+            public boolean compressed() {
+                return compressed;
+            }
+        }, Clock.SYSTEM);
+        registry.config().commonTags("env", "production", "region", "eu-west-1", "instance", "pod-7f9c4b6d8-x2k4q",
+                "app", "checkout-service");
+
+        AtomicLong gaugeValue = new AtomicLong();
+        for (int i = 0; i < METERS; i++) {
+            String[] tags = {"service", "svc-" + (i % 20), "endpoint", "/api/resource/" + (i % 500)};
+            switch (i % 10) {
+                case 0:
+                    Timer.builder("load.timer." + i).tags(tags).register(registry).record(i, TimeUnit.MILLISECONDS);
+                    break;
+                case 1:
+                case 2:
+                    registry.gauge("load.gauge." + i, Tags.of(tags), gaugeValue, AtomicLong::doubleValue);
+                    break;
+                default:
+                    Counter.builder("load.counter." + i).tags(tags).register(registry).increment(i);
+            }
+        }
+
+        long[] durations = new long[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            stub.reset();
+            gaugeValue.incrementAndGet();
+            long start = System.nanoTime();
+            registry.publish();
+            durations[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(durations);
+
+        long points = stub.points();
+        assertTrue("every meter should be published, got " + points, points >= METERS);
+        assertEquals(0, stub.rejected());
+        assertEquals(0, stub.missingBatches());
+
+        // nearest rank; with fewer than 100 publishes the p99 is the max
+        long max = durations[durations.length - 1];
+        long median = durations[durations.length / 2];
+        long p99 = durations[(int) Math.ceil(0.99 * durations.length) - 1];
+        logger.info(String.format("charteto load (%s): %d meters, %d points/publish, %d publishes, median %.1f ms, "
+                        + "p99 %.1f ms, max %.1f ms, %.0f points/s, %.1f wire bytes/point, %.1f json bytes/point",
+                compressed ? "gzip" : "plain", METERS, points, ITERATIONS, median / 1e6, p99 / 1e6, max / 1e6,
+                points / (median / 1e9), (double) stub.wireBytes() / points,
+                (double) stub.batches().stream().mapToLong(b -> b.jsonBytes).sum() / points));
+
+        registry.close();
+    }
+}
@@ -0,0 +1,144 @@
+package com.charteto;
+
+import io.micrometer.core.instrument.MockClock;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChartetoRateLimiterTest {
+
+    private final MockClock clock = new MockClock();
+
+    private long now() {
+        return clock.monotonicTime();
+    }
+
+    @Test
+    public void unlimitedNeverDefers() {
+        ChartetoRateLimiter limiter = new ChartetoRateLimiter(clock, 0, 0);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(limiter.acquire(1_000_000, now()));
+        }
+    }
+
+    @Test
+    public void requestBudgetRefillsOverTime() {
+        ChartetoRateLimiter limiter = new ChartetoRateLimiter(clock, 2, 0);
+
+        assertTrue(limiter.acquire(10, now()));
+        assertTrue(limiter.acquire(10, now()));
+        assertFalse(limiter.acquire(10, now()));
+
+        clock.add(500, TimeUnit.MILLISECONDS);
+        assertTrue(limiter.acquire(10, now()));
+        assertFalse(limiter.acquire(10, now()));
+    }
+
+    @Test
+    public void byteBudgetIsEnforced() {
+        ChartetoRateLimiter limiter = new ChartetoRateLimiter(clock, 0, 1000);
+
+        assertTrue(limiter.acquire(600, now()));
+        assertFalse(limiter.acquire(600, now()));
+
+        clock.add(200, TimeUnit.MILLISECONDS);
+        assertTrue(limiter.acquire(600, now()));
+    }
+
+    @Test
+    public void oversizedRequestGoesOutWhenBucketIsFull() {
+        ChartetoRateLimiter limiter = new ChartetoRateLimiter(clock, 0, 1000);
+
+        assertTrue(limiter.acquire(5000, now()));
+        // the debt has to be paid back before anything else is sent
+        clock.add(1, TimeUnit.SECONDS);
+        assertFalse(limiter.acquire(1, now()));
+        clock.add(4, TimeUnit.SECONDS);
+        assertTrue(limiter.acquire(1, now()));
+    }
+
+    @Test
+    public void throttleDrainsBudget() {
+        ChartetoRateLimiter limiter = new ChartetoRateLimiter(clock, 10, 0);
+
+        limiter.throttle();
+        assertFalse(limiter.acquire(1, now()));
+
+        // the budget refills in 100ms, but a 429 backs off for longer
+        clock.add(100, TimeUnit.MILLISECONDS);
+        assertFalse(limiter.acquire(1, now()));
+        clock.add(ChartetoRateLimiter.MIN_BACKOFF_NANOS, TimeUnit.NANOSECONDS);
+        assertTrue(limiter.acquire(1, now()));
+    }
+
+    @Test
+    public void throttleBacksOffWithoutLimits() {
+        ChartetoRateLimiter limiter = new ChartetoRateLimiter(clock, 0, 0);
+
+        limiter.throttle();
+        assertFalse(limiter.acquire(1, now()));
+        clock.add(ChartetoRateLimiter.MIN_BACKOFF_NANOS, TimeUnit.NANOSECONDS);
+        assertTrue(limiter.acquire(1, now()));
+
+        // 429s in a row back off for longer, until a request goes through
+        limiter.throttle();
+        clock.add(ChartetoRateLimiter.MIN_BACKOFF_NANOS, TimeUnit.NANOSECONDS);
+        assertFalse(limiter.acquire(1, now()));
+        limiter.succeeded();
+        limiter.throttle();
+        clock.add(ChartetoRateLimiter.MIN_BACKOFF_NANOS, TimeUnit.NANOSECONDS);
+        assertTrue(limiter.acquire(1, now()));
+    }
+
+    @Test
+    public void waitsOnTheClocksTimeSource() {
+        ChartetoRateLimiter limiter = new ChartetoRateLimiter(clock, 2, 0, nanos -> clock.add(nanos, TimeUnit.NANOSECONDS));
+        long start = now();
+        for (int i = 0; i < 4; i++) {
+            assertTrue(limiter.acquire(1, start + TimeUnit.SECONDS.toNanos(5)));
+        }
+        assertEquals(TimeUnit.SECONDS.toNanos(1), now() - start);
+
+        // with a sleeper that doesn't move the clock, waiting gives up instead of spinning
+        ChartetoRateLimiter frozen = new ChartetoRateLimiter(clock, 1, 0, nanos -> { });
+        assertTrue(frozen.acquire(1, now() + TimeUnit.SECONDS.toNanos(5)));
+        assertFalse(frozen.acquire(1, now() + TimeUnit.SECONDS.toNanos(5)));
+    }
+
+    @Test
+    public void waitsForBudgetWithinDeadline() {
+        ChartetoRateLimiter limiter = new ChartetoRateLimiter(io.micrometer.core.instrument.Clock.SYSTEM, 100, 0);
+        long start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            assertTrue(limiter.acquire(1, start + TimeUnit.SECONDS.toNanos(5)));
+        }
+        assertTrue(limiter.acquire(1, System.nanoTime() + TimeUnit.SECONDS.toNanos(5)));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(5));
+    }
+
+    @Test
+    public void waitingSenderDoesNotBlockOthers() throws InterruptedException {
+        CountDownLatch sleeping = new CountDownLatch(1);
+        CountDownLatch wake = new CountDownLatch(1);
+        ChartetoRateLimiter limiter = new ChartetoRateLimiter(clock, 1, 0, nanos -> {
+            sleeping.countDown();
+            wake.await();
+            clock.add(nanos, TimeUnit.NANOSECONDS);
+        });
+        assertTrue(limiter.acquire(10, now()));
+
+        Thread waiting = new Thread(() -> limiter.acquire(10, now() + TimeUnit.SECONDS.toNanos(5)));
+        waiting.start();
+        assertTrue(sleeping.await(5, TimeUnit.SECONDS));
+
+        // returns while the other sender sleeps toward its deadline
+        assertFalse(limiter.acquire(10, now()));
+        wake.countDown();
+        waiting.join();
+    }
+}
@@ -0,0 +1,94 @@
+package com.charteto;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChartetoRouterTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    private ChartetoRouter router(ChartetoRouting routing, String... uris) {
+        List<ChartetoEndpoint> endpoints = new ArrayList<>();
+        for (String uri : uris) {
+            endpoints.add(new ChartetoEndpoint(uri, registry, new ChartetoRateLimiter(registry.config().clock(), 0, 0)));
+        }
+        return new ChartetoRouter(endpoints, routing);
+    }
+
+    private List<Meter> meters(int count) {
+        List<Meter> meters = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            meters.add(Counter.builder("meter." + i).register(registry));
+        }
+        return meters;
+    }
+
+    @Test
+    public void replicateSendsEveryMeterToEveryEndpoint() {
+        ChartetoRouter router = router(ChartetoRouting.REPLICATE, "http://a", "http://b");
+        List<Meter> meters = meters(10);
+
+        List<ChartetoRouter.Route> routes = router.route(meters);
+
+        assertEquals(1, routes.size());
+        assertEquals(meters, routes.get(0).meters());
+        assertEquals(2, routes.get(0).endpoints().size());
+    }
+
+    @Test
+    public void consistentHashAssignsEachMeterToExactlyOneEndpoint() {
+        ChartetoRouter router = router(ChartetoRouting.CONSISTENT_HASH, "http://a", "http://b", "http://c");
+        List<Meter> meters = meters(3000);
+
+        int routed = 0;
+        for (ChartetoRouter.Route route : router.route(meters)) {
+            assertEquals(1, route.endpoints().size());
+            // roughly even spread across shards
+            assertTrue(route.meters().size() > 600);
+            routed += route.meters().size();
+        }
+        assertEquals(meters.size(), routed);
+    }
+
+    @Test
+    public void addingAnEndpointOnlyMovesAFractionOfMeters() {
+        ChartetoRouter before = router(ChartetoRouting.CONSISTENT_HASH, "http://a", "http://b", "http://c");
+        ChartetoRouter after = router(ChartetoRouting.CONSISTENT_HASH, "http://a", "http://b", "http://c", "http://d");
+
+        int moved = 0;
+        for (int i = 0; i < 4000; i++) {
+            String name = "meter." + i;
+            if (before.owner(name) != after.owner(name)) {
+                moved++;
+                // moved meters only ever go to the new shard
+                assertEquals(3, after.owner(name));
+            }
+        }
+        assertTrue("moved " + moved, moved < 1500);
+    }
+
+    @Test
+    public void hashIsStable() {
+        assertEquals(ChartetoRouter.hash("jvm.memory.used"), ChartetoRouter.hash("jvm.memory.used"));
+        assertTrue(Arrays.asList("a", "b", "c").stream().map(ChartetoRouter::hash).distinct().count() == 3);
+    }
+
+    @Test
+    public void hashDoesNotChangeAcrossVersions() {
+        // series would move between endpoints on upgrade; covers every length of the trailing bytes
+        assertEquals(2141232806, ChartetoRouter.hash("a"));
+        assertEquals(1955026322, ChartetoRouter.hash("ab"));
+        assertEquals(-934649123, ChartetoRouter.hash("abc"));
+        assertEquals(-1730789478, ChartetoRouter.hash("http.server.requests"));
+        assertEquals(599106503, ChartetoRouter.hash("jvm.memory.used"));
+    }
+}
@@ -0,0 +1,52 @@
+package com.charteto;
+
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChartetoSeriesTest {
+
+    private ChartetoSeries series(String... tags) {
+        return new ChartetoSeries("name", "GAUGE", null, Tags.of(tags).stream().collect(Collectors.toList()));
+    }
+
+    @Test
+    public void tagsAreEscaped() {
+        ChartetoSeries series = new ChartetoSeries("a\"b", "GAUGE", null, Collections.singletonList(Tag.of("k\"", "v\"")));
+        assertEquals("a\\\"b", series.name());
+        assertEquals("k\\\"", series.tagKey(0));
+        assertEquals("v\\\"", series.tagValue(0));
+    }
+
+    @Test
+    public void commonTagsAreSharedKeysWithSameValues() {
+        Map<String, String> expected = new LinkedHashMap<>();
+        expected.put("env", "prod");
+        expected.put("instance", "pod-1");
+
+        assertEquals(expected, ChartetoSeries.commonTags(Arrays.asList(
+                series("env", "prod", "instance", "pod-1", "route", "/a"),
+                series("env", "prod", "instance", "pod-1", "route", "/b"),
+                series("env", "prod", "instance", "pod-1"))));
+    }
+
+    @Test
+    public void tagsWithDifferentValuesAreNotCommon() {
+        assertTrue(ChartetoSeries.commonTags(Arrays.asList(
+                series("env", "prod"),
+                series("env", "dev"))).isEmpty());
+        assertTrue(ChartetoSeries.commonTags(Arrays.asList(
+                series("env", "prod"),
+                series())).isEmpty());
+        assertTrue(ChartetoSeries.commonTags(Collections.emptyList()).isEmpty());
+    }
+}
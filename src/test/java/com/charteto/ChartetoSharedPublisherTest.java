@@ -0,0 +1,202 @@
+package com.charteto;
+
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.ipc.http.HttpUrlConnectionSender;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChartetoSharedPublisherTest {
+
+    private final AtomicInteger threads = new AtomicInteger();
+    private final List<ChartetoMeterRegistry> registries = new ArrayList<>();
+    private ChartetoIngestionStub stub;
+    private ChartetoSharedPublisher publisher;
+
+    @Before
+    public void setUp() throws IOException {
+        stub = new ChartetoIngestionStub("test-api-key");
+        publisher = new ChartetoSharedPublisher(Duration.ofMinutes(1), Clock.SYSTEM,
+                new HttpUrlConnectionSender(Duration.ofSeconds(1), Duration.ofSeconds(2)), Thread::new);
+    }
+
+    @After
+    public void tearDown() {
+        registries.forEach(ChartetoMeterRegistry::close);
+        publisher.close();
+        stub.close();
+    }
+
+    private ChartetoMeterRegistry tenant(String apiKey, int maxRequestsPerSecond) {
+        ChartetoMeterRegistry registry = ChartetoMeterRegistry.builder(new TestChartetoConfig(stub.uri()) {
+                    @Override
+                    public String apiKey() {
+                        return apiKey;
+                    }
+
+                    @Override
+                    public int maxRequestsPerSecond() {
+                        return maxRequestsPerSecond;
+                    }
+                })
+                .sharedPublisher(publisher)
+                .threadFactory(runnable -> {
+                    threads.incrementAndGet();
+                    return new Thread(runnable);
+                })
+                .build();
+        registries.add(registry);
+        return registry;
+    }
+
+    private List<String> names(ChartetoIngestionStub.Batch batch) {
+        return batch.metrics().stream().map(metric -> (String) Json.object(metric).get("name")).collect(Collectors.toList());
+    }
+
+    @Test
+    public void registriesWithTheSameApiKeyShareBatches() {
+        tenant("test-api-key", 0).counter("tenant.a").increment();
+        tenant("test-api-key", 0).counter("tenant.b").increment();
+
+        publisher.publish();
+
+        assertEquals(1, stub.batches().size());
+        List<String> names = names(stub.latestBatch());
+        assertTrue(names.contains("tenant.a"));
+        assertTrue(names.contains("tenant.b"));
+        assertEquals("attached registries don't start publishing threads", 0, threads.get());
+    }
+
+    @Test
+    public void failingTenantDoesNotAffectOthers() {
+        ChartetoMeterRegistry rejected = tenant("revoked-api-key", 0);
+        rejected.counter("tenant.rejected").increment();
+        tenant("test-api-key", 0).counter("tenant.accepted").increment();
+
+        publisher.publish();
+
+        assertEquals(1, stub.rejected());
+        assertEquals(1, stub.batches().size());
+        assertTrue(names(stub.latestBatch()).contains("tenant.accepted"));
+        assertEquals(1, rejected.get("charteto.publish.requests").tag("outcome", "failure").counter().count(), 0);
+    }
+
+    @Test
+    public void tenantOverItsQuotaIsDeferredWithoutHoldingUpOthers() {
+        ChartetoMeterRegistry limited = tenant("limited-api-key", 1);
+        ChartetoMeterRegistry unlimited = tenant("test-api-key", 0);
+        for (int i = 0; i < 300; i++) {
+            limited.counter("limited.counter." + i).increment();
+            unlimited.counter("unlimited.counter." + i).increment();
+        }
+
+        long start = System.nanoTime();
+        publisher.publish();
+
+        assertTrue("a publish doesn't wait for rate budget", System.nanoTime() - start < Duration.ofSeconds(10).toNanos());
+        Counter deferred = limited.find("charteto.publish.deferred").counter();
+        assertTrue(deferred != null && deferred.count() > 0);
+        assertNull(unlimited.find("charteto.publish.deferred").counter());
+        assertEquals(300, stub.batches().stream().flatMap(batch -> names(batch).stream())
+                .filter(name -> name.startsWith("unlimited.counter.")).count());
+    }
+
+    @Test
+    public void closedRegistryIsDetachedAndPublishesItself() {
+        ChartetoMeterRegistry first = tenant("test-api-key", 0);
+        first.counter("tenant.first").increment();
+        tenant("test-api-key", 0).counter("tenant.second").increment();
+
+        first.close();
+        assertEquals(1, stub.batches().size());
+        assertTrue(names(stub.latestBatch()).contains("tenant.first"));
+
+        publisher.publish();
+        List<String> names = names(stub.latestBatch());
+        assertTrue(names.contains("tenant.second"));
+        assertTrue(names.stream().noneMatch("tenant.first"::equals));
+    }
+
+    @Test
+    public void registriesWithDifferentPublishSettingsAreGroupedApart() {
+        ChartetoMeterRegistry smallBatches = ChartetoMeterRegistry.builder(new TestChartetoConfig(stub.uri()) {
+            @Override
+            public int batchSize() {
+                return 1;
+            }
+        }).sharedPublisher(publisher).build();
+        registries.add(smallBatches);
+        smallBatches.counter("tenant.small.batches").increment();
+        tenant("test-api-key", 0).counter("tenant.default").increment();
+
+        publisher.publish();
+
+        // one batch for the default group, one per meter for the other
+        assertTrue(stub.batches().stream().anyMatch(batch -> names(batch).contains("tenant.default")
+                && names(batch).stream().noneMatch("tenant.small.batches"::equals)));
+        assertTrue(stub.batches().stream().anyMatch(batch -> names(batch).equals(Collections.singletonList("tenant.small.batches"))));
+    }
+
+    @Test
+    public void tenantsWaitOutOneGaugeSamplingBudgetBetweenThem() throws Exception {
+        // every tenant in a group of its own, each with a gauge that hangs past the 100ms budget
+        CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 5; i++) {
+            tenant("test-api-key", 1000 + i).gauge("tenant.hanging", release, latch -> {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return 1.0;
+            });
+        }
+
+        try {
+            long start = System.nanoTime();
+            publisher.publish();
+            assertTrue(System.nanoTime() - start < Duration.ofMillis(400).toNanos());
+            assertEquals(5, stub.batches().size());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void attachingDoesNotWaitForAPublishInProgress() throws Exception {
+        tenant("test-api-key", 0).counter("tenant.slow").increment();
+        stub.latency(Duration.ofMillis(500));
+        Thread publishing = new Thread(publisher::publish);
+        publishing.start();
+        Thread.sleep(100);
+
+        long start = System.nanoTime();
+        tenant("test-api-key", 0);
+        assertTrue(System.nanoTime() - start < Duration.ofMillis(300).toNanos());
+        publishing.join();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void registriesMustUseThePublishersStep() {
+        ChartetoMeterRegistry.builder(new TestChartetoConfig(stub.uri()) {
+            @Override
+            public Duration step() {
+                return Duration.ofSeconds(10);
+            }
+        }).sharedPublisher(publisher).build();
+    }
+}